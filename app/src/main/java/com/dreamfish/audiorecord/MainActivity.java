@@ -19,14 +19,18 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 
+import com.dreamfish.record.AudioBufferPool;
 import com.dreamfish.record.AudioRecorder;
-import com.dreamfish.record.RecordStreamListener;
+import com.dreamfish.record.AudioRingBuffer;
+import com.dreamfish.record.RecordShortStreamListener;
 import com.mobisys.asr.AsrModel;
 import com.mobisys.asr.AudioProcess;
+import com.mobisys.asr.RecognitionScheduler;
+import com.mobisys.asr.VoiceActivityDetector;
 
 import java.lang.reflect.Array;
+import java.nio.ShortBuffer;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 
@@ -36,13 +40,13 @@ import jaygoo.widget.wlv.WaveLineView;
 public class MainActivity extends Activity implements View.OnClickListener {
     WaveLineView wave;
     AudioRecorder audioRecorder;
-    RecordStreamListener listener;
+    RecordShortStreamListener listener;
     ImageView ivStart, ivPause;
     TextView asrText;
     AsrModel model;
-    Thread asrThread;
-    long place = 0;
-    final ArrayList<Short> audioData = new ArrayList<>();
+    RecognitionScheduler scheduler;
+    // 录音线程写入，识别线程读取，容量约65秒
+    final AudioRingBuffer audioData = new AudioRingBuffer(1 << 20);
     final int ADD_TEXT = 0;
     final int RESET_TEXT = 1;
 
@@ -80,15 +84,12 @@ public class MainActivity extends Activity implements View.OnClickListener {
         ivStart.setOnClickListener(this);
         ivPause.setOnClickListener(this);
 
-        listener = new RecordStreamListener() {
+        listener = new RecordShortStreamListener() {
             @Override
-            public void recordOfByte(byte[] data, int begin, int end) {
-                //TODO 获取到的byte数组的数据在这里使用
-                //存储接收到的数据到audioData
-                short[] audio = Utils.bytesToShorts(data);
-                for (short value : audio) {
-                    audioData.add(value);
-                }
+            public void recordOfShort(ShortBuffer data, AudioBufferPool.Buffer buffer) {
+                //存储接收到的样本到audioData，直接从录音缓冲区复制，不会阻塞
+                audioData.write(data);
+                scheduler.onAudioAvailable();
             }
         };
     }
@@ -104,33 +105,26 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
         model = new AsrModel();
         model.initModel(this);
-        asrThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while (true) {
-                    synchronized (audioData) {
-                        long length = audioData.size();
-                        if (length - place > 32000   //暂定每2秒处理一次
-                                || length > 0 && audioRecorder.getStatus() == AudioRecorder.Status.STATUS_PAUSE) {  // 录音结束，长度不够
-                            short[] audio = AsrModel.clipArrayToListShort(audioData, place, length);
-                            String str = model.recognize(audio);
-                            sendMsg(ADD_TEXT, str);
-                            place = length;
-                        }
+        // 每凑够流式编码一步的音频（约0.5秒）识别一次，没有音频时识别线程挂起
+        scheduler = new RecognitionScheduler(model.getEngine(), audioData, RecognitionScheduler.encoderStepMillis(),
+                new RecognitionScheduler.Listener() {
+                    @Override
+                    public void onText(String text) {
+                        sendMsg(ADD_TEXT, text);
                     }
-                }
-            }
-        });
-        asrThread.start();
+                });
+        // 特征提取、encoder和解码在三个线程中流水线处理
+        scheduler.enablePipeline(4);
+        // 静音不经过encoder，每段语音结束时输出该段的识别结果
+        scheduler.enableVoiceActivityDetection(new VoiceActivityDetector());
+        scheduler.start();
 
         audioRecorder = AudioRecorder.getInstance();
     }
 
     private void resetPara() {
-        place = 0;
-        synchronized (audioData) {  //避免上次的还在识别，这里就给清空了，会有卡顿(上次录制太长，会卡很久，主要原因，处理速度太慢)，但不至于闪退
-            audioData.clear();
-        }
+        //等待上次的识别结束再清空，会有卡顿(上次录制太长，会卡很久，主要原因，处理速度太慢)，但不至于闪退
+        scheduler.reset();
         asrText.setText("");
     }
 
@@ -177,6 +171,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
                         //停止录音
                         wave.stopAnim();
                         audioRecorder.stopRecord();
+                        scheduler.flush();
                         ivStart.setImageDrawable(getDrawable(R.drawable.ic_media_start));
                         ivPause.setImageDrawable(getDrawable(R.drawable.ic_media_pause));
                         ivPause.setVisibility(View.GONE);
@@ -192,6 +187,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
                         //暂停录音
                         wave.stopAnim();
                         audioRecorder.pauseRecord();
+                        scheduler.flush();
                         ivPause.setImageDrawable(getDrawable(R.drawable.ic_media_cotinue));
 //                        pause.setText("继续录音");
                         break;
@@ -221,6 +217,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
         wave.onPause();
         if (audioRecorder.getStatus() == AudioRecorder.Status.STATUS_START) {
             audioRecorder.pauseRecord();
+            scheduler.flush();
             ivPause.setImageDrawable(getDrawable(R.drawable.ic_media_cotinue));
         }
 
@@ -228,6 +225,7 @@ public class MainActivity extends Activity implements View.OnClickListener {
 
     @Override
     protected void onDestroy() {
+        scheduler.stop();
         audioRecorder.release();
         wave.release();
         super.onDestroy();
@@ -0,0 +1,259 @@
+package com.mobisys.asr;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.io.IOException;
+
+/**
+ * 识别引擎
+ * 三个TorchScript模块、字典、mask缓存和decoder输出缓存只加载一次，之后不再修改，可以在多个线程间共享。
+ * 每个音频流的解码状态保存在各自的AsrSession（或RecognitionSession、StreamingEncoder）中，
+ * 因此多个音频流（例如麦克风和文件转写）可以同时识别，不需要重新加载模型。
+ */
+public final class AsrEngine {
+    private static final String TAG = "AsrEngine";
+
+    static final int MAX_AUDIO_FEATURE_LEN = 410;
+    static final int MAX_LABEL_LEN = 40;
+    static final int LEFT_CONTEXT = 10;
+    static final int RIGHT_CONTEXT = 2;
+    static final int STREAMING_CHUNK_SIZE = 16;  // 流式编码每一步的新帧数，下采样后每帧30ms
+    private static final long MASK_CACHE_ELEMENTS = 4 * 1024 * 1024;  // 最多缓存4M个元素（16MB）
+    private static final int PREDICTION_CACHE_SIZE = 4096;  // 最多缓存的token序列数
+
+    private final Module encoder;
+    private final Module decoder;
+    private final Module joint;
+    private final Dictionary dictionary;
+    private final MaskCache maskCache;
+    private final PredictionCache predictionCache;
+
+    /**
+     * @param encoder    ：encoder模块
+     * @param decoder    ：decoder模块
+     * @param joint      ：joint模块
+     * @param dictionary ：已初始化的字典
+     */
+    public AsrEngine(Module encoder, Module decoder, Module joint, Dictionary dictionary) {
+        this.encoder = encoder;
+        this.decoder = decoder;
+        this.joint = joint;
+        this.dictionary = dictionary;
+        this.maskCache = new MaskCache(MASK_CACHE_ELEMENTS);
+        this.predictionCache = new PredictionCache(decoder, PREDICTION_CACHE_SIZE);
+    }
+
+    /**
+     * 从app的assets加载模型和字典
+     */
+    public static AsrEngine load(Context context) throws IOException {
+        return load(Utils.assetFilePath(context, "encoder.pt"),
+                Utils.assetFilePath(context, "decoder.pt"),
+                Utils.assetFilePath(context, "joint.pt"),
+                Utils.assetFilePath(context, "grapheme_table.txt"));
+    }
+
+    /**
+     * 从文件加载模型和字典
+     */
+    public static AsrEngine load(String encoderPath, String decoderPath, String jointPath, String dictionaryPath) {
+        Log.d(TAG, "加载encoder");
+        Module encoder = Module.load(encoderPath);
+        Log.d(TAG, "加载decoder");
+        Module decoder = Module.load(decoderPath);
+        Log.d(TAG, "加载joint");
+        Module joint = Module.load(jointPath);
+        Log.d(TAG, "初始化字典");
+        Dictionary dictionary = new Dictionary();
+        dictionary.init(dictionaryPath);
+        AsrEngine engine = new AsrEngine(encoder, decoder, joint, dictionary);
+        engine.warmUpMasks();
+        return engine;
+    }
+
+    /**
+     * 预先构造常用长度的mask：完整clip的长度，以及流式编码每一步的窗口长度
+     *
+     * @param lengths ：额外需要预先构造的长度
+     */
+    public void warmUpMasks(int... lengths) {
+        maskCache.warmUp(LEFT_CONTEXT, RIGHT_CONTEXT, MAX_AUDIO_FEATURE_LEN,
+                STREAMING_CHUNK_SIZE + RIGHT_CONTEXT,
+                LEFT_CONTEXT + STREAMING_CHUNK_SIZE + RIGHT_CONTEXT);
+        maskCache.warmUp(LEFT_CONTEXT, RIGHT_CONTEXT, lengths);
+    }
+
+    /**
+     * 创建使用贪心解码的识别会话
+     */
+    public AsrSession createSession() {
+        return new AsrSession(this, createRecognitionSession());
+    }
+
+    /**
+     * 使用指定的解码策略创建识别会话
+     */
+    public AsrSession createSession(Decoder decoder) {
+        return new AsrSession(this, new RecognitionSession(decoder));
+    }
+
+    /**
+     * 创建只保存解码状态的会话，用于自己管理特征提取和编码的场合
+     */
+    public RecognitionSession createRecognitionSession() {
+        return new RecognitionSession(createGreedyDecoder());
+    }
+
+    public GreedyDecoder createGreedyDecoder() {
+        return new GreedyDecoder(predictionCache, joint, dictionary, MAX_LABEL_LEN);
+    }
+
+    /**
+     * 创建束搜索解码器，所有解码器共用同一个decoder输出缓存
+     *
+     * @param beamWidth          ：每帧保留的假设数
+     * @param maxSymbolsPerFrame ：每帧最多输出的token数
+     */
+    public BeamSearchDecoder createBeamSearchDecoder(int beamWidth, int maxSymbolsPerFrame) {
+        return new BeamSearchDecoder(predictionCache, joint, dictionary, MAX_LABEL_LEN, beamWidth, maxSymbolsPerFrame);
+    }
+
+    /**
+     * 创建流式编码器，每一步只编码新的特征帧，并缓存左上下文
+     */
+    public StreamingEncoder createStreamingEncoder() {
+        return new StreamingEncoder(encoder, maskCache, LEFT_CONTEXT, RIGHT_CONTEXT, STREAMING_CHUNK_SIZE);
+    }
+
+    /**
+     * 创建批量编码器，一次编码多个clip
+     *
+     * @param maxBatchSize ：一次编码的最大样本数
+     */
+    public BatchEncoder createBatchEncoder(int maxBatchSize) {
+        return new BatchEncoder(encoder, LEFT_CONTEXT, RIGHT_CONTEXT, maxBatchSize);
+    }
+
+    /**
+     * 流式编码每一步的新特征帧数
+     */
+    public static int getStreamingChunkSize() {
+        return STREAMING_CHUNK_SIZE;
+    }
+
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    public MaskCache getMaskCache() {
+        return maskCache;
+    }
+
+    public PredictionCache getPredictionCache() {
+        return predictionCache;
+    }
+
+    /**
+     * 识别缓冲区中的全部特征，超过最大长度时按MAX_AUDIO_FEATURE_LEN切分，各个clip直接引用缓冲区中的行
+     * 最后一个clip不足最大长度时，与clip_feature一样补0，补的行追加在缓冲区末尾
+     *
+     * @param feature ：特征缓冲区
+     * @param session ：识别会话
+     * @return ：本次新识别的文本
+     */
+    public String recognize(FeatureBuffer feature, RecognitionSession session) {
+        int time_steps = feature.getRows();
+        if (time_steps == 0) {
+            return "";
+        }
+        if (time_steps <= MAX_AUDIO_FEATURE_LEN) {
+            return recognizeClip(feature, 0, time_steps, session) + session.finish();
+        }
+        int clip_num = (int) Math.ceil(time_steps / (float) MAX_AUDIO_FEATURE_LEN);
+        while (feature.getRows() < clip_num * MAX_AUDIO_FEATURE_LEN) {
+            feature.addRow();
+        }
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < clip_num; i++) {
+            stringBuilder.append(recognizeClip(feature, i * MAX_AUDIO_FEATURE_LEN, MAX_AUDIO_FEATURE_LEN, session));
+        }
+        // 束搜索在最后输出最优假设中尚未确定的部分
+        stringBuilder.append(session.finish());
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 长音频识别：相邻clip重叠overlap帧，在重叠区域的中点拼接，最后一个clip不补0
+     * 识别后缓冲区被清空
+     *
+     * @param feature ：特征缓冲区
+     * @param session ：识别会话
+     * @param overlap ：相邻clip重叠的帧数
+     * @return ：识别文本
+     */
+    public String recognize(FeatureBuffer feature, RecognitionSession session, int overlap) {
+        return createLongAudioRecognizer(overlap).finish(feature, session);
+    }
+
+    public LongAudioRecognizer createLongAudioRecognizer(int overlap) {
+        return new LongAudioRecognizer(this, overlap);
+    }
+
+    /**
+     * 识别一个clip，输入缓冲区中第rowStart行开始的time_steps行，不复制特征
+     *
+     * @param feature    ：特征缓冲区
+     * @param rowStart   ：起始行
+     * @param time_steps ：帧数，不超过最大长度
+     * @param session    ：识别会话
+     * @return ：本次新识别的文本
+     */
+    public String recognizeClip(FeatureBuffer feature, int rowStart, int time_steps, RecognitionSession session) {
+        return session.decode(encodeClip(feature, rowStart, time_steps), time_steps);
+    }
+
+    /**
+     * 编码一个clip，不解码；只读取特征，多个clip可以在不同线程中同时编码
+     *
+     * @param feature    ：特征缓冲区
+     * @param rowStart   ：起始行
+     * @param time_steps ：帧数，不超过最大长度
+     * @return ：encoder输出，[time_steps * dim]展开为一维
+     */
+    public float[] encodeClip(FeatureBuffer feature, int rowStart, int time_steps) {
+        final Tensor audio_tensor = feature.toTensor(rowStart, time_steps);
+
+        final Tensor audio_mask = maskCache.get(time_steps, LEFT_CONTEXT, RIGHT_CONTEXT);
+
+        Tensor encoder_output = encoder.forward(IValue.from(audio_tensor), IValue.from(audio_mask)).toTensor();
+
+        return encoder_output.getDataAsFloatArray();
+    }
+
+    /**
+     * clip的最大帧数
+     */
+    public static int getMaxClipLength() {
+        return MAX_AUDIO_FEATURE_LEN;
+    }
+
+    /**
+     * 流式识别，输入缓冲区中第rowStart行开始的rowCount行特征帧，只解码已经编码完成的帧
+     *
+     * @param feature          ：特征缓冲区
+     * @param rowStart         ：起始行
+     * @param rowCount         ：行数
+     * @param streamingEncoder ：流式编码器
+     * @param session          ：识别会话
+     * @return ：新识别的文本
+     */
+    public String recognize(FeatureBuffer feature, int rowStart, int rowCount, StreamingEncoder streamingEncoder, RecognitionSession session) {
+        FeatureBuffer encoder_output = streamingEncoder.encode(feature, rowStart, rowCount);
+        return session.decode(encoder_output, 0, encoder_output.getRows());
+    }
+}
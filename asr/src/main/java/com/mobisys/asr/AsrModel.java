@@ -3,41 +3,47 @@ package com.mobisys.asr;
 import android.content.Context;
 import android.util.Log;
 
-import org.pytorch.IValue;
-import org.pytorch.Module;
-import org.pytorch.Tensor;
-
 import java.io.IOException;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
+/**
+ * 识别模型
+ * 模型和字典由AsrEngine加载和共享，这里保留原有的接口，识别调用都转给engine；
+ * 需要同时识别多个音频流时，直接使用getEngine().createSession()。
+ */
 public class AsrModel {
-    private static Module encoder = null;
-    private static Module decoder = null;
-    private static Module joint = null;
-    private static Dictionary dictionary = new Dictionary();
-    private static int MAX_AUDIO_FEATURE_LEN = 410;
-    private static int MAX_LABEL_LEN = 40;
+    private static AsrEngine engine = null;
+    private static int MAX_AUDIO_FEATURE_LEN = AsrEngine.MAX_AUDIO_FEATURE_LEN;
 
     public void initModel(Context context) {
 
         try {
-            System.out.println("加载encoder");
-            encoder = Module.load(Utils.assetFilePath(context, "encoder.pt"));
-            System.out.println("加载decoder");
-            decoder = Module.load(Utils.assetFilePath(context, "decoder.pt"));
-            System.out.println("加载joint");
-            joint = Module.load(Utils.assetFilePath(context, "joint.pt"));
-            System.out.println("初始化字典");
-            dictionary.init(Utils.assetFilePath(context, "grapheme_table.txt"));
+            engine = AsrEngine.load(context);
         } catch (IOException e) {
             Log.e("ASR", "Error reading assets", e);
             e.printStackTrace();
         }
     }
 
+    /**
+     * 共享的识别引擎，initModel之后可用
+     *
+     * @return ：识别引擎
+     */
+    public AsrEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * 预先构造常用长度的mask：完整clip的长度，以及流式编码每一步的窗口长度
+     *
+     * @param lengths ：额外需要预先构造的长度
+     */
+    public void warmUpMasks(int... lengths) {
+        engine.warmUpMasks(lengths);
+    }
+
     /**
      * 识别音频文件
      *
@@ -45,19 +51,18 @@ public class AsrModel {
      * @return
      */
     public String recognize(String filePath) {
-        String str = null;
-        float[][] audio_feature = AudioProcess.get_feature(filePath);
-        if (audio_feature.length > MAX_AUDIO_FEATURE_LEN) {
-            StringBuilder stringBuilder = new StringBuilder();
-            float[][][] audio_features = clip_feature(audio_feature);
-            for (float[][] audioFeature : audio_features) {
-                stringBuilder.append(recognize_unit(audioFeature));
-            }
-            str = stringBuilder.toString();
-        } else {
-            str = recognize_unit(audio_feature);
-        }
-        return str;
+        return engine.createSession().recognize(filePath);
+    }
+
+    /**
+     * 流式转写音频文件，内存占用与文件长度无关
+     *
+     * @param filePath ：wav文件路径
+     * @param listener ：部分识别结果的回调，可以为null
+     * @return ：全部识别文本
+     */
+    public String transcribe(String filePath, RecognitionScheduler.Listener listener) {
+        return engine.createSession().transcribe(filePath, listener);
     }
 
     /**
@@ -67,19 +72,46 @@ public class AsrModel {
      * @return
      */
     public String recognize(short[] audioData) {
-        String str = null;
-        float[][] audio_feature = AudioProcess.get_feature(audioData);
-        if (audio_feature.length > MAX_AUDIO_FEATURE_LEN) {
-            StringBuilder stringBuilder = new StringBuilder();
-            float[][][] audio_features = clip_feature(audio_feature);
-            for (float[][] audioFeature : audio_features) {
-                stringBuilder.append(recognize_unit(audioFeature));
-            }
-            str = stringBuilder.toString();
-        } else {
-            str = recognize_unit(audio_feature);
+        FeatureBuffer feature = new FeatureBuffer(AudioProcess.FEATURE_DIM);
+        AudioProcess.get_feature(audioData, feature);
+        return recognize(feature, createSession());
+    }
+
+    /**
+     * 识别已提取的音频特征，例如StreamingFeatureExtractor输出的特征帧
+     *
+     * @param audio_feature
+     * @return
+     */
+    public String recognize(float[][] audio_feature) {
+        return recognize(audio_feature, createSession());
+    }
+
+    /**
+     * 识别已提取的音频特征，解码状态保存在会话中，切分后的各个clip共用同一个会话
+     *
+     * @param audio_feature
+     * @param session       ：识别会话
+     * @return ：本次新识别的文本
+     */
+    public String recognize(float[][] audio_feature, RecognitionSession session) {
+        if (audio_feature.length == 0) {
+            return "";
         }
-        return str;
+        FeatureBuffer feature = new FeatureBuffer(audio_feature[0].length, audio_feature.length);
+        feature.append(audio_feature);
+        return recognize(feature, session);
+    }
+
+    /**
+     * 识别缓冲区中的全部特征，超过最大长度时按MAX_AUDIO_FEATURE_LEN切分
+     *
+     * @param feature ：特征缓冲区
+     * @param session ：识别会话
+     * @return ：本次新识别的文本
+     */
+    public String recognize(FeatureBuffer feature, RecognitionSession session) {
+        return engine.recognize(feature, session);
     }
 
     /**
@@ -89,59 +121,119 @@ public class AsrModel {
      * @return
      */
     public String recognize_unit(float[][] audio_feature) {
-        int time_steps = audio_feature.length;
-        int feature_dim = audio_feature[0].length;
-        long[] audio_shape = new long[]{1, time_steps, feature_dim};
-        final Tensor audio_tensor = Tensor.fromBlob(flatten(audio_feature), audio_shape);
+        return recognize_unit(audio_feature, createSession());
+    }
+
+    /**
+     * 识别模块，解码状态保存在会话中
+     *
+     * @param audio_feature ：特征，长度不超过最大长度
+     * @param session       ：识别会话
+     * @return ：本次新识别的文本
+     */
+    public String recognize_unit(float[][] audio_feature, RecognitionSession session) {
+        FeatureBuffer feature = new FeatureBuffer(audio_feature[0].length, audio_feature.length);
+        feature.append(audio_feature);
+        return recognize_unit(feature, 0, audio_feature.length, session);
+    }
 
-        long[] mask_shape = new long[]{time_steps, time_steps, 1};
-        final Tensor audio_mask = Tensor.fromBlob(flatten(context_mask(time_steps, 10, 2)), mask_shape);
+    /**
+     * 识别模块，输入缓冲区中第rowStart行开始的time_steps行，不复制特征
+     *
+     * @param feature    ：特征缓冲区
+     * @param rowStart   ：起始行
+     * @param time_steps ：帧数，不超过最大长度
+     * @param session    ：识别会话
+     * @return ：本次新识别的文本
+     */
+    public String recognize_unit(FeatureBuffer feature, int rowStart, int time_steps, RecognitionSession session) {
+        return engine.recognizeClip(feature, rowStart, time_steps, session);
+    }
 
-        Tensor encoder_output = encoder.forward(IValue.from(audio_tensor), IValue.from(audio_mask)).toTensor();
+    /**
+     * 创建识别会话，会话保存解码状态，可跨多次识别调用
+     *
+     * @return ：识别会话
+     */
+    public RecognitionSession createSession() {
+        return engine.createRecognitionSession();
+    }
 
-        float[] encoder_output_list = encoder_output.getDataAsFloatArray();
-        float[][] encoder_output_matrix = reshape(encoder_output_list, time_steps, feature_dim);
+    /**
+     * 使用指定的解码策略创建识别会话
+     *
+     * @param decoder ：解码器，例如createBeamSearchDecoder()的结果
+     * @return ：识别会话
+     */
+    public RecognitionSession createSession(Decoder decoder) {
+        return new RecognitionSession(decoder);
+    }
+
+    /**
+     * 创建贪心解码器
+     *
+     * @return ：贪心解码器
+     */
+    public GreedyDecoder createGreedyDecoder() {
+        return engine.createGreedyDecoder();
+    }
 
-        ArrayList<Long> token_array = new ArrayList<>();
-        token_array.add((long) 0);
+    /**
+     * 创建束搜索解码器，所有解码器共用同一个decoder输出缓存
+     *
+     * @param beamWidth          ：每帧保留的假设数
+     * @param maxSymbolsPerFrame ：每帧最多输出的token数
+     * @return ：束搜索解码器
+     */
+    public BeamSearchDecoder createBeamSearchDecoder(int beamWidth, int maxSymbolsPerFrame) {
+        return engine.createBeamSearchDecoder(beamWidth, maxSymbolsPerFrame);
+    }
 
-        HashMap<Integer, Tensor> tensorMap = new HashMap<>();  // 记录label_encoder的输出，避免重复运算
+    /**
+     * 流式编码每一步的新特征帧数
+     */
+    public static int getStreamingChunkSize() {
+        return AsrEngine.getStreamingChunkSize();
+    }
 
-        StringBuilder stringBuilder = new StringBuilder();
+    /**
+     * 创建流式编码器，每一步只编码新的特征帧，并缓存左上下文
+     *
+     * @return ：流式编码器
+     */
+    public StreamingEncoder createStreamingEncoder() {
+        return engine.createStreamingEncoder();
+    }
 
-        for (int i = 0; i < time_steps; i++) {
-            // label -> decoder -> label_output
-            Tensor label_tensor = null;
-            if ((label_tensor = tensorMap.get(token_array.size())) == null) {
-                long[] token_shape = new long[]{1, token_array.size()};
-                long[] token = arrayToListLong(token_array);
-                final Tensor token_tensor = Tensor.fromBlob(token, token_shape);
-                Tensor label_output = decoder.forward(IValue.from(token_tensor)).toTensor();
-                float[] label_output_list = label_output.getDataAsFloatArray();
-                float[][] label_output_matrix = reshape(label_output_list, token.length, feature_dim);
-                label_tensor = Tensor.fromBlob(label_output_matrix[label_output_matrix.length - 1], new long[]{feature_dim});  // 仅取最后一帧
-                tensorMap.put(token_array.size(), label_tensor);
-            }
-            Tensor frame_tensor = Tensor.fromBlob(encoder_output_matrix[i], new long[]{feature_dim});
-
-            Tensor joint_output = joint.forward(IValue.from(frame_tensor), IValue.from(label_tensor)).toTensor();
-            float[] joint_output_list = joint_output.getDataAsFloatArray();
-            int max_index = argmax(joint_output_list);
-            if (max_index != 0) {
-                String word = dictionary.index_to_word(max_index);
-                stringBuilder.append(word);
-                token_array.add((long) max_index);
-                // 如果标签数量太多，则丢弃最前面的标签
-                if (token_array.size() > MAX_LABEL_LEN) {
-                    token_array.remove(0);
-                }
-                i += 2;  //跳音频帧，因为预测帧之后往往都是多个空白帧
-            }
+    /**
+     * 流式识别，特征帧经过流式编码器，只解码已经编码完成的帧
+     *
+     * @param audio_feature    ：新的特征帧
+     * @param streamingEncoder ：流式编码器
+     * @param session          ：识别会话
+     * @return ：新识别的文本
+     */
+    public String recognize(float[][] audio_feature, StreamingEncoder streamingEncoder, RecognitionSession session) {
+        float[][] encoder_output = streamingEncoder.accept(audio_feature);
+        if (encoder_output.length == 0) {
+            return "";
         }
-        return stringBuilder.toString();
-
+        return session.decode(encoder_output);
     }
 
+    /**
+     * 流式识别，输入缓冲区中第rowStart行开始的rowCount行特征帧
+     *
+     * @param feature          ：特征缓冲区
+     * @param rowStart         ：起始行
+     * @param rowCount         ：行数
+     * @param streamingEncoder ：流式编码器
+     * @param session          ：识别会话
+     * @return ：新识别的文本
+     */
+    public String recognize(FeatureBuffer feature, int rowStart, int rowCount, StreamingEncoder streamingEncoder, RecognitionSession session) {
+        return engine.recognize(feature, rowStart, rowCount, streamingEncoder, session);
+    }
 
     /**
      * 当特征长度超过最大长度时，对特征（二维）进行切分，得到三维特征
@@ -0,0 +1,301 @@
+package com.mobisys.asr;
+
+/**
+ * 一个音频流的识别状态：流式特征提取、流式编码和解码状态
+ * 模型由AsrEngine共享，会话本身很轻量，每个音频流创建一个。
+ * 不是线程安全的，同一时间只能由一个线程使用；不同的会话可以在不同的线程中同时识别。
+ */
+public class AsrSession {
+    private final AsrEngine engine;
+    private final StreamingFeatureExtractor featureExtractor;
+    private final FeatureBuffer featureBuffer;
+    private final StreamingEncoder streamingEncoder;
+    private final RecognitionSession session;
+    private LongAudioRecognizer longAudio = null;
+    private VoiceActivityDetector voiceActivityDetector = null;
+    // 语音活动检测之前的特征帧，文件转写时使用
+    private FeatureBuffer detectorInput = null;
+    // 流式识别时门控后的特征帧直接送入流式编码，语音段结束时输出剩余的文本
+    private final StringBuilder gatedText = new StringBuilder();
+    private final VoiceActivityDetector.Listener streamingGate = new VoiceActivityDetector.Listener() {
+        @Override
+        public void onSpeech(FeatureBuffer feature, int rowStart, int rowCount) {
+            gatedText.append(engine.recognize(feature, rowStart, rowCount, streamingEncoder, session));
+        }
+
+        @Override
+        public void onSegmentEnd() {
+            gatedText.append(finishSegment());
+        }
+    };
+
+    AsrSession(AsrEngine engine, RecognitionSession session) {
+        this.engine = engine;
+        this.featureExtractor = new StreamingFeatureExtractor();
+        this.featureBuffer = new FeatureBuffer(featureExtractor.getFeatureDim());
+        this.streamingEncoder = engine.createStreamingEncoder();
+        this.session = session;
+    }
+
+    public AsrEngine getEngine() {
+        return engine;
+    }
+
+    public RecognitionSession getRecognitionSession() {
+        return session;
+    }
+
+    /**
+     * 整段识别和文件转写使用重叠的clip，在重叠区域的中点拼接，最后一个clip不补0
+     *
+     * @param overlap ：相邻clip重叠的帧数，小于0时恢复为不重叠、补0的切分
+     */
+    public void enableLongAudio(int overlap) {
+        longAudio = overlap < 0 ? null : engine.createLongAudioRecognizer(overlap);
+    }
+
+    /**
+     * 流式识别、整段识别和文件转写都跳过静音：只有语音帧（包括hangover和pre-roll）经过encoder和解码，
+     * 每段语音结束时输出解码器尚未确定的文本
+     *
+     * @param voiceActivityDetector ：语音活动检测，为null时不检测
+     */
+    public void enableVoiceActivityDetection(VoiceActivityDetector voiceActivityDetector) {
+        this.voiceActivityDetector = voiceActivityDetector;
+        featureExtractor.setVoiceActivityDetector(voiceActivityDetector);
+        if (voiceActivityDetector != null && detectorInput == null) {
+            detectorInput = new FeatureBuffer(featureExtractor.getFeatureDim());
+        }
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return voiceActivityDetector;
+    }
+
+    /**
+     * 流式识别：输入一段音频，返回新识别的文本
+     *
+     * @param audio  ：音频数据
+     * @param offset ：起始位置
+     * @param length ：样本数
+     * @return ：新识别的文本
+     */
+    public String accept(short[] audio, int offset, int length) {
+        featureBuffer.clear();
+        featureExtractor.accept(audio, offset, length, featureBuffer);
+        if (voiceActivityDetector != null) {
+            gatedText.setLength(0);
+            voiceActivityDetector.process(featureBuffer, streamingGate);
+            return gatedText.toString();
+        }
+        return engine.recognize(featureBuffer, 0, featureBuffer.getRows(), streamingEncoder, session);
+    }
+
+    /**
+     * 当前音频段结束：识别剩余的音频，输出解码器尚未确定的文本，之后可以开始新的音频段
+     *
+     * @return ：新识别的文本
+     */
+    public String flush() {
+        featureBuffer.clear();
+        featureExtractor.flush(featureBuffer);
+        String text;
+        if (voiceActivityDetector != null) {
+            gatedText.setLength(0);
+            voiceActivityDetector.process(featureBuffer, streamingGate);
+            voiceActivityDetector.flush(streamingGate);
+            text = gatedText.toString();
+        } else {
+            text = engine.recognize(featureBuffer, 0, featureBuffer.getRows(), streamingEncoder, session);
+            text += finishSegment();
+        }
+        featureExtractor.reset();
+        return text;
+    }
+
+    /**
+     * 编码流式编码器中等待右侧前瞻的帧，输出解码器尚未确定的文本
+     */
+    private String finishSegment() {
+        FeatureBuffer encoder_output = streamingEncoder.encodeRemaining();
+        String text = session.decode(encoder_output, 0, encoder_output.getRows());
+        text += session.finish();
+        streamingEncoder.reset();
+        return text;
+    }
+
+    /**
+     * 整段识别short数组的音频，按clip切分编码；会清空流式识别和解码的状态，结果与之前的调用无关
+     *
+     * @param audio ：音频数据
+     * @return ：识别文本
+     */
+    public String recognize(short[] audio) {
+        reset();
+        featureBuffer.clear();
+        if (voiceActivityDetector != null) {
+            StringBuilder stringBuilder = new StringBuilder();
+            VoiceActivityDetector.Listener gate = speechGate(stringBuilder, null);
+            acceptSpeech(audio, 0, audio.length, gate);
+            finishSpeech(gate);
+            return stringBuilder.toString();
+        }
+        featureExtractor.accept(audio, 0, audio.length, featureBuffer);
+        featureExtractor.flush(featureBuffer);
+        featureExtractor.reset();
+        if (longAudio != null) {
+            return longAudio.finish(featureBuffer, session);
+        }
+        return engine.recognize(featureBuffer, session);
+    }
+
+    /**
+     * 整段识别音频文件
+     *
+     * @param filePath ：wav文件路径
+     * @return ：识别文本
+     */
+    public String recognize(String filePath) {
+        return transcribe(filePath, null);
+    }
+
+    /**
+     * 流式转写音频文件：按块读取wav，逐块提取特征，凑够一个clip就编码解码，通过listener输出部分结果
+     * 特征缓冲区最多保留一个clip加一块音频的特征，内存占用与文件长度无关；
+     * 切分和补0与整段识别相同，结果也相同；启用enableLongAudio后使用重叠的clip。
+     * 会清空流式识别和解码的状态，结果与之前的调用无关
+     *
+     * @param filePath ：wav文件路径
+     * @param listener ：部分识别结果的回调，在调用线程中调用，可以为null
+     * @return ：全部识别文本
+     */
+    public String transcribe(String filePath, RecognitionScheduler.Listener listener) {
+        reset();
+        featureBuffer.clear();
+        WaveFileReader reader = AudioProcess.open_wav(filePath);
+        short[] window = new short[AudioProcess.WAV_READ_CHUNK];
+        StringBuilder stringBuilder = new StringBuilder();
+        int count;
+        if (voiceActivityDetector != null) {
+            VoiceActivityDetector.Listener gate = speechGate(stringBuilder, listener);
+            while ((count = reader.read(window, 0, window.length)) > 0) {
+                acceptSpeech(window, 0, count, gate);
+            }
+            finishSpeech(gate);
+            return stringBuilder.toString();
+        }
+        int clip_num = 0;
+        while ((count = reader.read(window, 0, window.length)) > 0) {
+            featureExtractor.accept(window, 0, count, featureBuffer);
+            if (longAudio != null) {
+                emit(longAudio.accept(featureBuffer, session), stringBuilder, listener);
+            } else {
+                clip_num += recognizeFullClips(stringBuilder, listener);
+            }
+        }
+        featureExtractor.flush(featureBuffer);
+        featureExtractor.reset();
+        if (longAudio != null) {
+            emit(longAudio.finish(featureBuffer, session), stringBuilder, listener);
+            return stringBuilder.toString();
+        }
+        clip_num += recognizeFullClips(stringBuilder, listener);
+
+        int time_steps = featureBuffer.getRows();
+        if (time_steps > 0) {
+            // 只有一个clip时按实际长度编码，否则与clip_feature一样补0到最大长度
+            if (clip_num > 0) {
+                while (featureBuffer.getRows() < AsrEngine.MAX_AUDIO_FEATURE_LEN) {
+                    featureBuffer.addRow();
+                }
+                time_steps = AsrEngine.MAX_AUDIO_FEATURE_LEN;
+            }
+            emit(engine.recognizeClip(featureBuffer, 0, time_steps, session), stringBuilder, listener);
+        }
+        if (clip_num > 0 || time_steps > 0) {
+            emit(session.finish(), stringBuilder, listener);
+        }
+        featureBuffer.clear();
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 启用语音活动检测时的整段识别：每段语音单独切分为clip识别，最后一个clip不补0，静音不编码
+     * 识别的文本追加到stringBuilder，并通过listener输出
+     */
+    private VoiceActivityDetector.Listener speechGate(final StringBuilder stringBuilder, final RecognitionScheduler.Listener listener) {
+        final LongAudioRecognizer clips = longAudio != null ? longAudio : engine.createLongAudioRecognizer(0);
+        return new VoiceActivityDetector.Listener() {
+            @Override
+            public void onSpeech(FeatureBuffer feature, int rowStart, int rowCount) {
+                featureBuffer.append(feature, rowStart, rowCount);
+                emit(clips.accept(featureBuffer, session), stringBuilder, listener);
+            }
+
+            @Override
+            public void onSegmentEnd() {
+                emit(clips.finish(featureBuffer, session), stringBuilder, listener);
+            }
+        };
+    }
+
+    private void acceptSpeech(short[] audio, int offset, int length, VoiceActivityDetector.Listener gate) {
+        detectorInput.clear();
+        featureExtractor.accept(audio, offset, length, detectorInput);
+        voiceActivityDetector.process(detectorInput, gate);
+    }
+
+    private void finishSpeech(VoiceActivityDetector.Listener gate) {
+        detectorInput.clear();
+        featureExtractor.flush(detectorInput);
+        featureExtractor.reset();
+        voiceActivityDetector.process(detectorInput, gate);
+        voiceActivityDetector.flush(gate);
+        detectorInput.clear();
+        featureBuffer.clear();
+    }
+
+    /**
+     * 识别缓冲区中已经凑够的完整clip，识别后丢弃
+     *
+     * @return ：识别的clip数
+     */
+    private int recognizeFullClips(StringBuilder stringBuilder, RecognitionScheduler.Listener listener) {
+        int clip_num = 0;
+        while (featureBuffer.getRows() >= AsrEngine.MAX_AUDIO_FEATURE_LEN) {
+            emit(engine.recognizeClip(featureBuffer, 0, AsrEngine.MAX_AUDIO_FEATURE_LEN, session), stringBuilder, listener);
+            featureBuffer.discard(AsrEngine.MAX_AUDIO_FEATURE_LEN);
+            clip_num++;
+        }
+        return clip_num;
+    }
+
+    private static void emit(String text, StringBuilder stringBuilder, RecognitionScheduler.Listener listener) {
+        stringBuilder.append(text);
+        if (listener != null && text.length() > 0) {
+            listener.onText(text);
+        }
+    }
+
+    /**
+     * 获取会话到目前为止的全部识别文本
+     */
+    public String getTranscript() {
+        return session.getTranscript();
+    }
+
+    /**
+     * 清空全部状态，开始新的音频流
+     */
+    public void reset() {
+        featureExtractor.reset();
+        streamingEncoder.reset();
+        if (longAudio != null) {
+            longAudio.reset();
+        }
+        if (voiceActivityDetector != null) {
+            voiceActivityDetector.reset();
+        }
+        session.reset();
+    }
+}
@@ -3,23 +3,44 @@ package com.mobisys.asr;
 import java.util.Arrays;
 
 public class AudioProcess {
+    // get_feature输出的特征维数：4帧128维log-mel堆叠
+    public static final int FEATURE_DIM = 512;
+    // 按块读取wav文件时每块的采样数
+    static final int WAV_READ_CHUNK = 16000;
 
     /**
      * read audio data from audio file
      *
      * @param file_path:file path
-     * @return : 1-dim float audio data
+     * @return : 1-dim float audio data, channel 0
      */
     public static float[] read_wav_from_file(String file_path) {
-        WaveFileReader reader = new WaveFileReader(file_path);
-        int[][] data3 = reader.getData();
-        float[][] data4 = new float[data3.length][data3[0].length];
-        for (int m = 0; m < data3.length; m++) {
-            for (int n = 0; n < data3[0].length; n++) {
-                data4[m][n] = (float) data3[m][n];
+        WaveFileReader reader = open_wav(file_path);
+        float[] audio_data = new float[reader.getDataLen()];
+        short[] chunk = new short[WAV_READ_CHUNK];
+        int offset = 0;
+        int count;
+        while ((count = reader.read(chunk, 0, chunk.length)) > 0) {
+            for (int i = 0; i < count; i++) {
+                audio_data[offset + i] = chunk[i];
             }
+            offset += count;
         }
-        return data4[0];
+        return audio_data;
+    }
+
+    /**
+     * 打开wav文件，失败时抛出异常
+     *
+     * @param file_path:file path
+     * @return : 已解析头部的reader
+     */
+    public static WaveFileReader open_wav(String file_path) {
+        WaveFileReader reader = new WaveFileReader(file_path);
+        if (!reader.isSuccess()) {
+            throw new IllegalArgumentException("cannot read wave file " + file_path);
+        }
+        return reader;
     }
 
     /**
@@ -119,12 +140,29 @@ public class AudioProcess {
      * @return : feature
      */
     public static float[][] get_feature(String audio_path) {
-        float[] audio_data = read_wav_from_file(audio_path);
-        float[][] feature = Melspectrogram.melspectrogram(audio_data, 16000, 512, 160, 512, 128);
-        feature = T(log(feature));
-        feature = concat_frame(feature, 3, 0);
-        feature = subsampling(feature, 3);
-        return feature;
+        FeatureBuffer feature = new FeatureBuffer(FEATURE_DIM);
+        int rows = get_feature(audio_path, feature);
+        return feature.toArray(0, rows);
+    }
+
+    /**
+     * 从音频文件提取特征，追加到out末尾
+     * log、堆叠和下采样在同一遍计算中完成，只为下采样保留的帧做堆叠，不产生中间数组
+     * @param audio_path : audio path
+     * @param out : 输出缓冲区，[T, 512]
+     * @return : 特征帧数
+     */
+    public static int get_feature(String audio_path, FeatureBuffer out) {
+        WaveFileReader reader = open_wav(audio_path);
+        StreamingFeatureExtractor extractor = new StreamingFeatureExtractor();
+        // 按块从映射的文件读取第一个声道，不需要整段音频的数组
+        short[] chunk = new short[WAV_READ_CHUNK];
+        int rows = 0;
+        int count;
+        while ((count = reader.read(chunk, 0, chunk.length)) > 0) {
+            rows += extractor.accept(chunk, 0, count, out);
+        }
+        return rows + extractor.flush(out);
     }
 
     /**
@@ -134,16 +172,21 @@ public class AudioProcess {
      * @return
      */
     public static float[][] get_feature(short[] audio) {
-        int audioLength = audio.length;
-        float[] audio_data = new float[audioLength];
-        for (int i = 0; i < audioLength; i++) {
-            audio_data[i] = audio[i];
-        }
-        float[][] feature = Melspectrogram.melspectrogram(audio_data, 16000, 512, 160, 512, 128);
-        feature = T(log(feature));
-        feature = concat_frame(feature, 3, 0);
-        feature = subsampling(feature, 3);
-        return feature;
+        FeatureBuffer feature = new FeatureBuffer(FEATURE_DIM);
+        int rows = get_feature(audio, feature);
+        return feature.toArray(0, rows);
+    }
+
+    /**
+     * 从音频数据提取特征，追加到out末尾
+     * @param audio
+     * @param out : 输出缓冲区，[T, 512]
+     * @return : 特征帧数
+     */
+    public static int get_feature(short[] audio, FeatureBuffer out) {
+        StreamingFeatureExtractor extractor = new StreamingFeatureExtractor();
+        int rows = extractor.accept(audio, 0, audio.length, out);
+        return rows + extractor.flush(out);
     }
 
     /**
@@ -153,9 +196,8 @@ public class AudioProcess {
      */
     public static float[][] get_feature2(String audio_path) {
         float[] audio_data = read_wav_from_file(audio_path);
-        float[][] feature = Melspectrogram.melspectrogram(audio_data, 16000, 2048, 160, 320, 128);
-        feature = Melspectrogram.amplitude_to_db(feature);
-        feature = T(feature);
-        return feature;
+        FeatureTables tables = FeatureTables.get(new FeaturePipelineConfig(16000, 2048, 160, 320, 128));
+        float[][] feature = Melspectrogram.melspectrogram_frames(audio_data, tables);
+        return Melspectrogram.amplitude_to_db(feature);
     }
 }
@@ -0,0 +1,162 @@
+package com.mobisys.asr;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 批量编码
+ * 把多个clip（可以来自不同的文件或会话）补0到相同的帧数T，拼成[B, T, 512]的输入，
+ * 同时构造[B, T, T, 1]的mask：每个样本的有效帧之间与context_mask相同，补齐的帧对有效帧不可见。
+ * 一次encoder.forward之后再按样本拆分输出。batch大于1时矩阵运算的CPU利用率更高，适合离线重新转写。
+ * 输入和mask的缓冲区在多次调用之间复用，不是线程安全的，每个线程使用自己的BatchEncoder。
+ */
+public class BatchEncoder {
+    /**
+     * 一个待编码的clip，直接引用特征缓冲区中的行
+     */
+    public static final class Clip {
+        final FeatureBuffer feature;
+        final int rowStart;
+        final int time_steps;
+        float[] output = null;
+
+        /**
+         * @param feature    ：特征缓冲区
+         * @param rowStart   ：起始行
+         * @param time_steps ：帧数
+         */
+        public Clip(FeatureBuffer feature, int rowStart, int time_steps) {
+            this.feature = feature;
+            this.rowStart = rowStart;
+            this.time_steps = time_steps;
+        }
+
+        public int getTimeSteps() {
+            return time_steps;
+        }
+
+        /**
+         * @return ：encoder输出，[time_steps * dim]展开为一维，编码之前为null
+         */
+        public float[] getOutput() {
+            return output;
+        }
+    }
+
+    private final Module encoder;
+    private final int leftContext;
+    private final int rightContext;
+    private final int maxBatchSize;
+
+    // [B * T, 512]的输入，每个样本占T行
+    private final FeatureBuffer input = new FeatureBuffer(AudioProcess.FEATURE_DIM);
+    private FloatBuffer mask = null;
+
+    /**
+     * @param encoder      ：encoder模块
+     * @param leftContext  ：左上下文帧数，与context_mask一致
+     * @param rightContext ：右上下文帧数，与context_mask一致
+     * @param maxBatchSize ：一次编码的最大样本数
+     */
+    public BatchEncoder(Module encoder, int leftContext, int rightContext, int maxBatchSize) {
+        this.encoder = encoder;
+        this.leftContext = leftContext;
+        this.rightContext = rightContext;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * 把clip按帧数排序后分组，每组不超过maxBatchSize个，
+     * 且最短的clip补齐后不超过自身长度的maxPadding倍，长度相近的clip分在一组以减少补0
+     *
+     * @param clips      ：待编码的clip
+     * @param maxPadding ：组内最长与最短clip的帧数之比上限，不小于1
+     * @return ：分组
+     */
+    public List<List<Clip>> group(List<Clip> clips, float maxPadding) {
+        List<Clip> sorted = new ArrayList<>(clips);
+        Collections.sort(sorted, new Comparator<Clip>() {
+            @Override
+            public int compare(Clip a, Clip b) {
+                return Integer.compare(b.time_steps, a.time_steps);
+            }
+        });
+        List<List<Clip>> batches = new ArrayList<>();
+        List<Clip> batch = null;
+        for (Clip clip : sorted) {
+            // 按长度从长到短，第一个clip决定组内的T
+            if (batch == null || batch.size() >= maxBatchSize
+                    || batch.get(0).time_steps > clip.time_steps * maxPadding) {
+                batch = new ArrayList<>();
+                batches.add(batch);
+            }
+            batch.add(clip);
+        }
+        return batches;
+    }
+
+    /**
+     * 一次编码一组clip，结果写入各个clip的output
+     *
+     * @param batch ：不超过maxBatchSize个clip
+     */
+    public void encode(List<Clip> batch) {
+        int batch_size = batch.size();
+        if (batch_size == 0) {
+            return;
+        }
+        if (batch_size > maxBatchSize) {
+            throw new IllegalArgumentException("batch size " + batch_size + " > " + maxBatchSize);
+        }
+        int seq_len = 0;
+        for (Clip clip : batch) {
+            seq_len = Math.max(seq_len, clip.time_steps);
+        }
+
+        input.clear();
+        ensureMask(batch_size * seq_len * seq_len);
+        mask.clear();
+        for (Clip clip : batch) {
+            input.append(clip.feature, clip.rowStart, clip.time_steps);
+            for (int i = clip.time_steps; i < seq_len; i++) {
+                input.addRow();
+            }
+            MaskCache.fill(mask, seq_len, clip.time_steps, leftContext, rightContext);
+        }
+        mask.flip();
+
+        final Tensor audio_tensor = input.toTensor(0, batch_size * seq_len,
+                new long[]{batch_size, seq_len, input.getDim()});
+        // fromBlob要求容量与形状一致，mask缓冲区可能比本次需要的大
+        final Tensor audio_mask = Tensor.fromBlob(mask.slice(), new long[]{batch_size, seq_len, seq_len, 1});
+        float[] encoder_output = encoder.forward(IValue.from(audio_tensor), IValue.from(audio_mask))
+                .toTensor().getDataAsFloatArray();
+
+        // 输出为[B, T, dim]，每个样本只取有效帧
+        int dim = encoder_output.length / (batch_size * seq_len);
+        for (int b = 0; b < batch_size; b++) {
+            Clip clip = batch.get(b);
+            clip.output = new float[clip.time_steps * dim];
+            System.arraycopy(encoder_output, b * seq_len * dim, clip.output, 0, clip.output.length);
+        }
+    }
+
+    private void ensureMask(int size) {
+        if (mask == null || mask.capacity() < size) {
+            mask = ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.mobisys.asr;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 批量转写wav文件
+ * 每个文件是一个fork-join任务：提取特征后按MAX_AUDIO_FEATURE_LEN切分，各个clip再作为子任务并行编码，
+ * 全部编码完成后按顺序解码（解码状态在clip之间传递）。不同的文件同时进行，空闲的线程会窃取其他文件的clip。
+ * 模型由AsrEngine共享，每个文件使用自己的识别会话。
+ * 设置batchSize后，所有文件的clip按长度相近分组，交给BatchEncoder一次编码一组。
+ */
+public class BatchTranscriber {
+    private final AsrEngine engine;
+    private final ForkJoinPool pool;
+    private volatile int batchSize = 1;
+    private volatile float maxPadding = 1.25f;
+    private final ThreadLocal<BatchEncoder> batchEncoders = new ThreadLocal<>();
+
+    /**
+     * 一个文件的转写结果和耗时
+     */
+    public static final class Transcript {
+        private final String path;
+        private final String text;
+        private final int frames;
+        private final long featureMillis;
+        private final long encoderMillis;
+        private final long decodeMillis;
+        private final long totalMillis;
+        private final Throwable error;
+
+        Transcript(String path, String text, int frames, long featureMillis, long encoderMillis,
+                   long decodeMillis, long totalMillis, Throwable error) {
+            this.path = path;
+            this.text = text;
+            this.frames = frames;
+            this.featureMillis = featureMillis;
+            this.encoderMillis = encoderMillis;
+            this.decodeMillis = decodeMillis;
+            this.totalMillis = totalMillis;
+            this.error = error;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return ：识别文本，失败时为空字符串
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * 特征帧数，每帧对应30ms音频
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        public long getFeatureMillis() {
+            return featureMillis;
+        }
+
+        /**
+         * 所有clip编码耗时之和，并行时可能大于总耗时
+         */
+        public long getEncoderMillis() {
+            return encoderMillis;
+        }
+
+        public long getDecodeMillis() {
+            return decodeMillis;
+        }
+
+        /**
+         * 从开始提取特征到得到文本的总耗时，不包括排队等待的时间
+         */
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        /**
+         * @return ：处理失败时的异常，成功时为null
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return path + "\t" + totalMillis + "ms\t" + text;
+        }
+    }
+
+    /**
+     * @param engine      ：识别引擎
+     * @param parallelism ：并行线程数
+     */
+    public BatchTranscriber(AsrEngine engine, int parallelism) {
+        this.engine = engine;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public BatchTranscriber(AsrEngine engine) {
+        this(engine, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 设置批量编码：所有文件的clip按长度相近分组，每组一次encoder.forward，默认每次只编码一个clip
+     *
+     * @param batchSize  ：每组最多的clip数，不大于1时逐个编码
+     * @param maxPadding ：组内最长与最短clip的帧数之比上限
+     */
+    public void setBatchSize(int batchSize, float maxPadding) {
+        this.batchSize = batchSize;
+        this.maxPadding = Math.max(1, maxPadding);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * 转写目录下的所有wav文件，按文件名排序
+     *
+     * @param directory ：目录
+     * @return ：每个文件的结果
+     */
+    public List<Transcript> transcribe(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase().endsWith(".wav");
+            }
+        });
+        List<String> paths = new ArrayList<>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                paths.add(file.getPath());
+            }
+        }
+        return transcribe(paths);
+    }
+
+    /**
+     * 转写多个wav文件
+     *
+     * @param paths ：文件路径
+     * @return ：每个文件的结果，顺序与paths相同
+     */
+    public List<Transcript> transcribe(List<String> paths) {
+        final List<FileJob> jobs = new ArrayList<>();
+        for (String path : paths) {
+            jobs.add(new FileJob(path));
+        }
+        final int batch_size = batchSize;
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (batch_size > 1) {
+                    transcribeBatched(jobs, batch_size);
+                } else {
+                    List<FileTask> tasks = new ArrayList<>();
+                    for (FileJob job : jobs) {
+                        tasks.add(new FileTask(job));
+                    }
+                    invokeAll(tasks);
+                }
+            }
+        });
+        List<Transcript> transcripts = new ArrayList<>();
+        for (FileJob job : jobs) {
+            transcripts.add(job.transcript);
+        }
+        return transcripts;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 批量模式：先并行提取所有文件的特征，再把全部clip分组并行编码，最后并行解码各个文件
+     */
+    private void transcribeBatched(List<FileJob> jobs, int batch_size) {
+        List<RecursiveAction> extractTasks = new ArrayList<>();
+        for (final FileJob job : jobs) {
+            extractTasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    job.extract();
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(extractTasks);
+
+        final IdentityHashMap<BatchEncoder.Clip, FileJob> owners = new IdentityHashMap<>();
+        List<BatchEncoder.Clip> clips = new ArrayList<>();
+        for (FileJob job : jobs) {
+            for (BatchEncoder.Clip clip : job.clips) {
+                owners.put(clip, job);
+                clips.add(clip);
+            }
+        }
+        List<RecursiveAction> encodeTasks = new ArrayList<>();
+        for (final List<BatchEncoder.Clip> batch : engine.createBatchEncoder(batch_size).group(clips, maxPadding)) {
+            encodeTasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    long start = System.currentTimeMillis();
+                    try {
+                        batchEncoder(batch_size).encode(batch);
+                    } catch (RuntimeException e) {
+                        for (BatchEncoder.Clip clip : batch) {
+                            owners.get(clip).fail(e);
+                        }
+                        return;
+                    }
+                    // 一组的耗时平均分给组内的clip
+                    long millis = (System.currentTimeMillis() - start) / batch.size();
+                    for (BatchEncoder.Clip clip : batch) {
+                        owners.get(clip).addEncoderMillis(millis);
+                    }
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(encodeTasks);
+
+        List<RecursiveAction> decodeTasks = new ArrayList<>();
+        for (final FileJob job : jobs) {
+            decodeTasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    job.decode();
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(decodeTasks);
+    }
+
+    /**
+     * 每个工作线程复用自己的批量编码器
+     */
+    private BatchEncoder batchEncoder(int batch_size) {
+        BatchEncoder batchEncoder = batchEncoders.get();
+        if (batchEncoder == null || batchEncoder.getMaxBatchSize() != batch_size) {
+            batchEncoder = engine.createBatchEncoder(batch_size);
+            batchEncoders.set(batchEncoder);
+        }
+        return batchEncoder;
+    }
+
+    /**
+     * 一个文件的处理状态
+     */
+    private final class FileJob {
+        private final String path;
+        // 开始提取特征的时间，不包括在线程池中等待其他文件的时间
+        private long start = 0;
+        private final List<BatchEncoder.Clip> clips = new ArrayList<>();
+        private int frames = 0;
+        private long featureMillis = 0;
+        private long encoderMillis = 0;
+        private Throwable error = null;
+        private Transcript transcript = null;
+
+        FileJob(String path) {
+            this.path = path;
+        }
+
+        /**
+         * 提取特征，与AsrEngine.recognize相同地切分为clip，最后一个clip不足最大长度时补0
+         */
+        void extract() {
+            long begin = System.currentTimeMillis();
+            start = begin;
+            try {
+                FeatureBuffer feature = new FeatureBuffer(AudioProcess.FEATURE_DIM);
+                frames = AudioProcess.get_feature(path, feature);
+                if (frames > 0) {
+                    int clipLength = AsrEngine.getMaxClipLength();
+                    int clip_num = (int) Math.ceil(frames / (float) clipLength);
+                    if (clip_num > 1) {
+                        while (feature.getRows() < clip_num * clipLength) {
+                            feature.addRow();
+                        }
+                    } else {
+                        clipLength = frames;
+                    }
+                    for (int i = 0; i < clip_num; i++) {
+                        clips.add(new BatchEncoder.Clip(feature, i * clipLength, clipLength));
+                    }
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            featureMillis = System.currentTimeMillis() - begin;
+        }
+
+        synchronized void addEncoderMillis(long millis) {
+            encoderMillis += millis;
+        }
+
+        synchronized void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        /**
+         * 所有clip编码完成后按顺序解码
+         */
+        void decode() {
+            long begin = System.currentTimeMillis();
+            String text = "";
+            synchronized (this) {
+                if (error != null) {
+                    transcript = new Transcript(path, "", frames, featureMillis, encoderMillis, 0, begin - start, error);
+                    return;
+                }
+            }
+            try {
+                RecognitionSession session = engine.createRecognitionSession();
+                StringBuilder stringBuilder = new StringBuilder();
+                for (BatchEncoder.Clip clip : clips) {
+                    stringBuilder.append(session.decode(clip.getOutput(), clip.getTimeSteps()));
+                }
+                stringBuilder.append(session.finish());
+                text = stringBuilder.toString();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            long end = System.currentTimeMillis();
+            synchronized (this) {
+                transcript = new Transcript(path, error == null ? text : "", frames, featureMillis, encoderMillis,
+                        end - begin, end - start, error);
+            }
+        }
+    }
+
+    /**
+     * 逐个编码：提取特征后每个clip作为子任务并行编码，再按顺序解码
+     */
+    private final class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileJob job;
+
+        FileTask(FileJob job) {
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            job.extract();
+            List<ClipTask> tasks = new ArrayList<>();
+            for (BatchEncoder.Clip clip : job.clips) {
+                tasks.add(new ClipTask(job, clip));
+            }
+            invokeAll(tasks);
+            job.decode();
+        }
+    }
+
+    private final class ClipTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileJob job;
+        private final BatchEncoder.Clip clip;
+
+        ClipTask(FileJob job, BatchEncoder.Clip clip) {
+            this.job = job;
+            this.clip = clip;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.currentTimeMillis();
+            try {
+                clip.output = engine.encodeClip(clip.feature, clip.rowStart, clip.time_steps);
+            } catch (RuntimeException e) {
+                job.fail(e);
+            }
+            job.addEncoderMillis(System.currentTimeMillis() - start);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.mobisys.asr;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 束搜索解码
+ * 每帧对束中的每个假设计算joint的log-softmax：空白使假设进入下一帧，非空白扩展出新的假设，
+ * 同一帧最多输出maxSymbolsPerFrame个token，最后一次扩展出的假设也进入下一帧。
+ * token历史相同的假设合并，概率相加；每帧只保留beamWidth个假设。
+ * 一帧中所有假设的joint一次批量计算，decoder的输出通过PredictionCache共享。
+ * 所有假设共同的前缀已经确定，decode()只返回这部分文本，其余在finish()时按最优假设输出。
+ */
+public class BeamSearchDecoder implements Decoder {
+    private final PredictionCache predictionCache;
+    private final Module joint;
+    private final Dictionary dictionary;
+    private final int maxLabelLen;
+    private final int beamWidth;
+    private final int maxSymbolsPerFrame;
+
+    private List<Hypothesis> beam = new ArrayList<>();
+    private TokenNode committed = null;  // 已经输出的最后一个token
+
+    // 批量joint的输入：同一帧重复n行，以及n个假设的label
+    private FeatureBuffer frame_block = null;
+    private FeatureBuffer label_block = null;
+
+    private static final Comparator<Hypothesis> BY_SCORE = new Comparator<Hypothesis>() {
+        @Override
+        public int compare(Hypothesis a, Hypothesis b) {
+            return Double.compare(b.score, a.score);
+        }
+    };
+
+    /**
+     * 输出的token链，假设之间共享公共前缀
+     */
+    private static final class TokenNode {
+        final int token;
+        final int length;  // 从第一个输出的token开始的总数
+        TokenNode prev;
+
+        TokenNode(int token, TokenNode prev) {
+            this.token = token;
+            this.prev = prev;
+            this.length = prev == null ? 1 : prev.length + 1;
+        }
+    }
+
+    private static final class Hypothesis {
+        final long[] tokens;  // 送入decoder的token序列，最多maxLabelLen个
+        final TokenNode last;  // 输出的全部token
+        final long history;  // 全部token的哈希，用于合并前缀
+        double score;
+        float[] label_output = null;
+
+        Hypothesis(long[] tokens, TokenNode last, long history, double score) {
+            this.tokens = tokens;
+            this.last = last;
+            this.history = history;
+            this.score = score;
+        }
+
+        int length() {
+            return last == null ? 0 : last.length;
+        }
+
+        /**
+         * token历史是否相同：哈希和长度相同时再逐个比较token，直到两条链汇合
+         */
+        boolean samePrefix(Hypothesis other) {
+            if (history != other.history || length() != other.length()) {
+                return false;
+            }
+            TokenNode a = last;
+            TokenNode b = other.last;
+            while (a != b) {
+                // 长度相同，两条链同时到达null或汇合
+                if (a == null || b == null || a.token != b.token) {
+                    return false;
+                }
+                a = a.prev;
+                b = b.prev;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param predictionCache    ：decoder输出缓存
+     * @param joint              ：joint模块
+     * @param dictionary         ：字典
+     * @param maxLabelLen        ：送入decoder的最多token数
+     * @param beamWidth          ：每帧保留的假设数
+     * @param maxSymbolsPerFrame ：每帧最多输出的token数
+     */
+    public BeamSearchDecoder(PredictionCache predictionCache, Module joint, Dictionary dictionary,
+                             int maxLabelLen, int beamWidth, int maxSymbolsPerFrame) {
+        this.predictionCache = predictionCache;
+        this.joint = joint;
+        this.dictionary = dictionary;
+        this.maxLabelLen = maxLabelLen;
+        this.beamWidth = Math.max(1, beamWidth);
+        this.maxSymbolsPerFrame = Math.max(1, maxSymbolsPerFrame);
+        reset();
+    }
+
+    @Override
+    public String decode(FeatureBuffer encoder_output, int rowStart, int time_steps) {
+        for (int t = 0; t < time_steps; t++) {
+            decodeFrame(encoder_output, rowStart + t);
+        }
+        return commit(commonPrefix());
+    }
+
+    @Override
+    public String finish() {
+        Hypothesis best = beam.get(0);
+        beam = new ArrayList<>();
+        beam.add(best);
+        return commit(best.last);
+    }
+
+    @Override
+    public void reset() {
+        beam = new ArrayList<>();
+        beam.add(new Hypothesis(new long[]{0}, null, 0, 0));
+        committed = null;
+    }
+
+    public int getBeamWidth() {
+        return beamWidth;
+    }
+
+    public int getMaxSymbolsPerFrame() {
+        return maxSymbolsPerFrame;
+    }
+
+    private void decodeFrame(FeatureBuffer encoder_output, int row) {
+        HashMap<Long, Hypothesis> next = new HashMap<>();
+        List<Hypothesis> expanding = beam;
+        for (int s = 0; s < maxSymbolsPerFrame && !expanding.isEmpty(); s++) {
+            boolean lastSymbol = s == maxSymbolsPerFrame - 1;
+            float[] log_probs = jointLogProbs(encoder_output, row, expanding);
+            int vocab_size = log_probs.length / expanding.size();
+            HashMap<Long, Hypothesis> extended = new HashMap<>();
+            for (int h = 0; h < expanding.size(); h++) {
+                Hypothesis hyp = expanding.get(h);
+                int offset = h * vocab_size;
+                // 空白：假设不变，进入下一帧
+                Hypothesis blank = new Hypothesis(hyp.tokens, hyp.last, hyp.history, hyp.score + log_probs[offset]);
+                blank.label_output = hyp.label_output;
+                merge(next, blank);
+                // 非空白：只扩展概率最大的beamWidth个token
+                for (int token : topTokens(log_probs, offset, vocab_size, beamWidth)) {
+                    Hypothesis child = extend(hyp, token, hyp.score + log_probs[offset + token]);
+                    merge(lastSymbol ? next : extended, child);
+                }
+            }
+            expanding = prune(extended.values());
+            // 继续扩展的假设都不可能进入下一帧的束时提前结束
+            List<Hypothesis> ready = prune(next.values());
+            if (ready.size() >= beamWidth && !expanding.isEmpty()
+                    && expanding.get(0).score < ready.get(ready.size() - 1).score) {
+                break;
+            }
+        }
+        beam = prune(next.values());
+    }
+
+    /**
+     * 一次计算所有假设在这一帧的joint输出，并转换为log-softmax
+     *
+     * @return ：[n, vocab_size]展开为一维
+     */
+    private float[] jointLogProbs(FeatureBuffer encoder_output, int row, List<Hypothesis> hyps) {
+        int n = hyps.size();
+        int feature_dim = encoder_output.getDim();
+        if (frame_block == null || frame_block.getDim() != feature_dim) {
+            frame_block = new FeatureBuffer(feature_dim, beamWidth);
+        }
+        frame_block.clear();
+        for (int h = 0; h < n; h++) {
+            frame_block.append(encoder_output, row, 1);
+        }
+        for (int h = 0; h < n; h++) {
+            Hypothesis hyp = hyps.get(h);
+            if (hyp.label_output == null) {
+                hyp.label_output = prediction(hyp.tokens);
+            }
+            if (label_block == null || label_block.getDim() != hyp.label_output.length) {
+                label_block = new FeatureBuffer(hyp.label_output.length, beamWidth);
+            }
+            if (h == 0) {
+                label_block.clear();
+            }
+            label_block.append(hyp.label_output, 0, 1);
+        }
+        float[] joint_output_list = forwardJoint(frame_block, label_block, n);
+        int vocab_size = joint_output_list.length / n;
+        for (int h = 0; h < n; h++) {
+            logSoftmax(joint_output_list, h * vocab_size, vocab_size);
+        }
+        return joint_output_list;
+    }
+
+    /**
+     * decoder对token序列的输出
+     */
+    float[] prediction(long[] tokens) {
+        return predictionCache.get(tokens);
+    }
+
+    /**
+     * joint对前n行输入的输出
+     *
+     * @return ：[n, vocab_size]展开为一维，未经softmax
+     */
+    float[] forwardJoint(FeatureBuffer frames, FeatureBuffer labels, int n) {
+        Tensor frame_tensor = frames.toTensor(0, n, new long[]{n, frames.getDim()});
+        Tensor label_tensor = labels.toTensor(0, n, new long[]{n, labels.getDim()});
+        return joint.forward(IValue.from(frame_tensor), IValue.from(label_tensor)).toTensor().getDataAsFloatArray();
+    }
+
+    private Hypothesis extend(Hypothesis hyp, int token, double score) {
+        long[] tokens = GreedyDecoder.appendToken(hyp.tokens, token, maxLabelLen);
+        long history = (hyp.history ^ token) * 0x100000001b3L;
+        return new Hypothesis(tokens, new TokenNode(token, hyp.last), history, score);
+    }
+
+    /**
+     * 加入假设，已有相同token历史的假设时合并，概率相加
+     */
+    private static void merge(HashMap<Long, Hypothesis> hyps, Hypothesis hyp) {
+        Hypothesis other = hyps.get(hyp.history);
+        if (other == null) {
+            hyps.put(hyp.history, hyp);
+        } else if (other.samePrefix(hyp)) {
+            double score = logAddExp(other.score, hyp.score);
+            if (hyp.score > other.score) {
+                hyps.put(hyp.history, hyp);
+                other = hyp;
+            }
+            other.score = score;
+        } else if (hyp.score > other.score) {
+            // 哈希冲突，保留概率大的
+            hyps.put(hyp.history, hyp);
+        }
+    }
+
+    private List<Hypothesis> prune(Collection<Hypothesis> hyps) {
+        ArrayList<Hypothesis> sorted = new ArrayList<>(hyps);
+        Collections.sort(sorted, BY_SCORE);
+        if (sorted.size() > beamWidth) {
+            return new ArrayList<>(sorted.subList(0, beamWidth));
+        }
+        return sorted;
+    }
+
+    /**
+     * 所有假设共同的最后一个输出token
+     */
+    private TokenNode commonPrefix() {
+        TokenNode common = beam.get(0).last;
+        for (int h = 1; h < beam.size(); h++) {
+            TokenNode other = beam.get(h).last;
+            while (common != other) {
+                if (common == null || other == null) {
+                    return null;
+                }
+                if (common.length >= other.length) {
+                    common = common.prev;
+                } else {
+                    other = other.prev;
+                }
+            }
+        }
+        return common;
+    }
+
+    /**
+     * 输出committed之后到node为止的token，node之前的链不再需要
+     */
+    private String commit(TokenNode node) {
+        int start = committed == null ? 0 : committed.length;
+        if (node == null || node.length <= start) {
+            return "";
+        }
+        String[] words = new String[node.length - start];
+        TokenNode current = node;
+        for (int i = words.length - 1; i >= 0; i--) {
+            words[i] = dictionary.index_to_word(current.token);
+            current = current.prev;
+        }
+        node.prev = null;
+        committed = node;
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String word : words) {
+            stringBuilder.append(word);
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 概率最大的count个非空白token，按概率从大到小
+     */
+    private static int[] topTokens(float[] log_probs, int offset, int vocab_size, int count) {
+        count = Math.min(count, vocab_size - 1);
+        int[] top = new int[count];
+        int size = 0;
+        for (int token = 1; token < vocab_size; token++) {
+            float value = log_probs[offset + token];
+            if (size == count && value <= log_probs[offset + top[size - 1]]) {
+                continue;
+            }
+            int i = size < count ? size++ : size - 1;
+            while (i > 0 && log_probs[offset + top[i - 1]] < value) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = token;
+        }
+        return top;
+    }
+
+    private static void logSoftmax(float[] data, int offset, int length) {
+        float max = data[offset];
+        for (int i = 1; i < length; i++) {
+            max = Math.max(max, data[offset + i]);
+        }
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += Math.exp(data[offset + i] - max);
+        }
+        float log_sum = (float) (max + Math.log(sum));
+        for (int i = 0; i < length; i++) {
+            data[offset + i] -= log_sum;
+        }
+    }
+
+    private static double logAddExp(double a, double b) {
+        double max = Math.max(a, b);
+        return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+    }
+}
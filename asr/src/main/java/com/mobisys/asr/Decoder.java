@@ -0,0 +1,30 @@
+package com.mobisys.asr;
+
+/**
+ * RNN-T解码策略
+ * 输入encoder的输出帧，保存跨调用的解码状态，返回新确定的文本。
+ * 不是线程安全的，每个识别会话使用自己的实例。
+ */
+public interface Decoder {
+    /**
+     * 解码缓冲区中第rowStart行开始的time_steps帧encoder输出，接着上次调用的状态继续
+     *
+     * @param encoder_output ：encoder输出
+     * @param rowStart       ：起始行
+     * @param time_steps     ：帧数
+     * @return ：本次新确定的文本
+     */
+    String decode(FeatureBuffer encoder_output, int rowStart, int time_steps);
+
+    /**
+     * 当前音频段结束，输出尚未确定的文本；之后仍可以继续解码
+     *
+     * @return ：剩余的文本
+     */
+    String finish();
+
+    /**
+     * 清空解码状态
+     */
+    void reset();
+}
@@ -1,37 +1,243 @@
 package com.mobisys.asr;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
-import java.util.HashMap;
-
-
+/**
+ * 字典
+ * token id到词是按id下标的String[]，解码时每个token只是一次数组访问；
+ * 词到id是开放寻址（线性探测）的散列表，不装箱。
+ * 第一次读取grapheme_table.txt时生成二进制缓存（默认在同一目录，文件名后加.bin），
+ * 之后直接读取缓存，不再逐行解析文本；文本的长度或修改时间变化时重新生成。
+ * 初始化之后只读，可以在多个线程间共享。
+ */
 public class Dictionary {
-    private static final HashMap<String, Integer> word2index = new HashMap<>();
-    private static final HashMap<Integer, String> index2word = new HashMap<>();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CACHE_MAGIC = 0x44494354;  // "DICT"
+    private static final int CACHE_VERSION = 1;
+    private static final String CACHE_SUFFIX = ".bin";
+    private static final String UNKNOWN_WORD = " ";
+
+    // id -> 词，没有定义的id为null
+    private String[] index2word = new String[0];
+    // 词 -> id，keys为null的位置是空位
+    private String[] keys = new String[0];
+    private int[] values = new int[0];
+    private int mask = -1;
+    private int size = 0;
 
     public void init(String dictionary_path) {
+        init(dictionary_path, dictionary_path + CACHE_SUFFIX);
+    }
+
+    /**
+     * @param dictionary_path ：文本格式的字典，每行"词 id"
+     * @param cache_path      ：二进制缓存，不存在或已过期时由文本生成；为null时不使用缓存
+     */
+    public void init(String dictionary_path, String cache_path) {
+        File source = new File(dictionary_path);
+        File cache = cache_path != null ? new File(cache_path) : null;
         try {
-            BufferedReader in = new BufferedReader(new FileReader(dictionary_path));
-            String str = null;
-            while ((str = in.readLine())!= null){
-                String[] items = str.split(" ");
-                String word = items[0];
-                int index = Integer.parseInt(items[1]);
-                word2index.put(word,index);
-                index2word.put(index, word);
+            if (cache != null && readCache(cache, source)) {
+                return;
             }
+            readTable(source);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
+        }
+        if (cache != null) {
+            try {
+                writeCache(cache, source);
+            } catch (IOException e) {
+                // 缓存写不进去（例如目录只读）不影响使用，下次继续读文本
+                e.printStackTrace();
+                cache.delete();
+            }
         }
     }
 
     public int word_to_index(String word) {
-        return word2index.getOrDefault(word, 0);
+        if (size == 0 || word == null) {
+            return 0;
+        }
+        for (int slot = hash(word) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(word)) {
+                return values[slot];
+            }
+        }
+        return 0;
     }
 
     public String index_to_word(int index) {
-        return index2word.getOrDefault(index, " ");
+        if (index < 0 || index >= index2word.length) {
+            return UNKNOWN_WORD;
+        }
+        String word = index2word[index];
+        return word != null ? word : UNKNOWN_WORD;
+    }
+
+    /**
+     * 词的个数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 逐行解析文本：第一个空格之前是词，之后到下一个空格（或行尾）是id
+     */
+    private void readTable(File source) throws IOException {
+        String[] words = new String[64];
+        int[] ids = new int[64];
+        int count = 0;
+        int maxIndex = -1;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(source), UTF_8));
+        try {
+            String str;
+            while ((str = in.readLine()) != null) {
+                int space = str.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                int end = str.indexOf(' ', space + 1);
+                int index = Integer.parseInt(str.substring(space + 1, end < 0 ? str.length() : end).trim());
+                if (count == words.length) {
+                    words = Arrays.copyOf(words, count * 2);
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                words[count] = str.substring(0, space);
+                ids[count] = index;
+                count++;
+                maxIndex = Math.max(maxIndex, index);
+            }
+        } finally {
+            in.close();
+        }
+        String[] table = new String[maxIndex + 1];
+        for (int i = 0; i < count; i++) {
+            if (ids[i] >= 0) {
+                table[ids[i]] = words[i];
+            }
+        }
+        build(table, words, ids, count);
+    }
+
+    /**
+     * 缓存格式：magic、版本、文本的长度和修改时间、数组长度，之后每个id一项：
+     * UTF-8字节数（-1表示没有定义）和字节
+     */
+    private boolean readCache(File cache, File source) throws IOException {
+        if (!cache.isFile()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+        try {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION
+                    || in.readLong() != source.length() || in.readLong() != source.lastModified()) {
+                return false;
+            }
+            int length = in.readInt();
+            if (length < 0) {
+                return false;
+            }
+            String[] table = new String[length];
+            byte[] bytes = new byte[64];
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                int n = in.readInt();
+                if (n < 0) {
+                    continue;
+                }
+                if (n > bytes.length) {
+                    bytes = new byte[Math.max(n, bytes.length * 2)];
+                }
+                in.readFully(bytes, 0, n);
+                table[i] = new String(bytes, 0, n, UTF_8);
+                count++;
+            }
+            String[] words = new String[count];
+            int[] ids = new int[count];
+            count = 0;
+            for (int i = 0; i < length; i++) {
+                if (table[i] != null) {
+                    words[count] = table[i];
+                    ids[count] = i;
+                    count++;
+                }
+            }
+            build(table, words, ids, count);
+            return true;
+        } catch (IOException e) {
+            // 缓存不完整，重新生成
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCache(File cache, File source) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cache)));
+        try {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(index2word.length);
+            for (String word : index2word) {
+                if (word == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                byte[] bytes = word.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 建立id -> 词的数组和词 -> id的散列表；同一个词出现多次时后面的id覆盖前面的
+     */
+    private void build(String[] table, String[] words, int[] ids, int count) {
+        int capacity = Integer.highestOneBit(Math.max(2, count * 2) - 1) << 1;
+        String[] newKeys = new String[capacity];
+        int[] newValues = new int[capacity];
+        int newMask = capacity - 1;
+        int newSize = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = hash(words[i]) & newMask;
+            while (newKeys[slot] != null && !newKeys[slot].equals(words[i])) {
+                slot = (slot + 1) & newMask;
+            }
+            if (newKeys[slot] == null) {
+                newKeys[slot] = words[i];
+                newSize++;
+            }
+            newValues[slot] = ids[i];
+        }
+        index2word = table;
+        keys = newKeys;
+        values = newValues;
+        mask = newMask;
+        size = newSize;
+    }
+
+    private static int hash(String word) {
+        int h = word.hashCode();
+        // 打散低位，线性探测只用到低位
+        return h ^ (h >>> 16);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+package com.mobisys.asr;
+
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * 可复用的连续特征缓冲区，按[rows, dim]行优先存放在direct FloatBuffer中
+ * 容量不够时才重新分配，clear()之后复用同一块内存；
+ * 任意连续的几行可以不经复制直接构造Tensor送入encoder。
+ * 写入不是线程安全的；没有写入时，多个线程可以同时读取（slice、toTensor、toArray）。
+ */
+public final class FeatureBuffer {
+    private static final float[] ZEROS = new float[1024];
+
+    private final int dim;
+    private FloatBuffer data;
+    private int rows = 0;
+
+    public FeatureBuffer(int dim) {
+        this(dim, 64);
+    }
+
+    public FeatureBuffer(int dim, int initialRows) {
+        this.dim = dim;
+        this.data = allocate(Math.max(1, initialRows) * dim);
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * 清空数据，保留已分配的内存
+     */
+    public void clear() {
+        rows = 0;
+    }
+
+    /**
+     * 在末尾添加一行，内容全部为0
+     *
+     * @return ：新行的行号
+     */
+    public int addRow() {
+        ensureCapacity(rows + 1);
+        int row = rows++;
+        data.position(row * dim);
+        for (int length = dim; length > 0; length -= ZEROS.length) {
+            data.put(ZEROS, 0, Math.min(length, ZEROS.length));
+        }
+        data.clear();
+        return row;
+    }
+
+    /**
+     * 向第row行的第col列开始写入数据
+     */
+    public void put(int row, int col, float[] src, int srcPos, int length) {
+        data.position(row * dim + col);
+        data.put(src, srcPos, length);
+        data.clear();
+    }
+
+    /**
+     * 在末尾追加rowCount行，数据取自src
+     */
+    public void append(float[] src, int srcPos, int rowCount) {
+        ensureCapacity(rows + rowCount);
+        put(rows, 0, src, srcPos, rowCount * dim);
+        rows += rowCount;
+    }
+
+    /**
+     * 在末尾追加另一个缓冲区中的rowCount行
+     */
+    public void append(FeatureBuffer src, int rowStart, int rowCount) {
+        ensureCapacity(rows + rowCount);
+        data.position(rows * dim);
+        data.put(src.slice(rowStart, rowCount));
+        data.clear();
+        rows += rowCount;
+    }
+
+    /**
+     * 在末尾追加二维数组中的全部行
+     */
+    public void append(float[][] src) {
+        ensureCapacity(rows + src.length);
+        for (float[] row : src) {
+            put(rows++, 0, row, 0, dim);
+        }
+    }
+
+    /**
+     * 丢弃最前面的rowCount行，后面的行前移
+     */
+    public void discard(int rowCount) {
+        if (rowCount <= 0) {
+            return;
+        }
+        data.limit(rows * dim);
+        data.position(rowCount * dim);
+        data.compact();
+        data.clear();
+        rows -= rowCount;
+    }
+
+    /**
+     * 第rowStart行开始的rowCount行的视图，与缓冲区共享内存
+     */
+    public FloatBuffer slice(int rowStart, int rowCount) {
+        FloatBuffer view = data.duplicate();
+        view.limit((rowStart + rowCount) * dim);
+        view.position(rowStart * dim);
+        return view.slice();
+    }
+
+    /**
+     * 不复制数据，直接用第rowStart行开始的rowCount行构造[1, rowCount, dim]的Tensor
+     */
+    public Tensor toTensor(int rowStart, int rowCount) {
+        return toTensor(rowStart, rowCount, new long[]{1, rowCount, dim});
+    }
+
+    /**
+     * 不复制数据，用第rowStart行开始的rowCount行构造指定形状的Tensor，形状的元素数必须等于rowCount * dim
+     */
+    public Tensor toTensor(int rowStart, int rowCount, long[] shape) {
+        return Tensor.fromBlob(slice(rowStart, rowCount), shape);
+    }
+
+    /**
+     * 复制为二维数组
+     */
+    public float[][] toArray(int rowStart, int rowCount) {
+        float[][] temp = new float[rowCount][dim];
+        FloatBuffer view = data.duplicate();
+        for (int i = 0; i < rowCount; i++) {
+            view.position((rowStart + i) * dim);
+            view.get(temp[i]);
+        }
+        return temp;
+    }
+
+    private void ensureCapacity(int rowCount) {
+        if (rowCount * dim > data.capacity()) {
+            FloatBuffer temp = allocate(Math.max(rowCount, 2 * data.capacity() / dim) * dim);
+            data.limit(rows * dim);
+            data.position(0);
+            temp.put(data);
+            temp.clear();
+            data = temp;
+        }
+    }
+
+    private static FloatBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
@@ -0,0 +1,54 @@
+package com.mobisys.asr;
+
+/**
+ * 特征提取参数，作为FeatureTables缓存的键
+ */
+public final class FeaturePipelineConfig {
+    /**
+     * get_feature使用的参数：16kHz，n_fft=win_length=512，hop_length=160，128维mel
+     */
+    public static final FeaturePipelineConfig DEFAULT = new FeaturePipelineConfig(16000, 512, 160, 512, 128);
+
+    public final int sr;
+    public final int n_fft;
+    public final int hop_length;
+    public final int win_length;
+    public final int n_mels;
+
+    public FeaturePipelineConfig(int sr, int n_fft, int hop_length, int win_length, int n_mels) {
+        this.sr = sr;
+        this.n_fft = n_fft;
+        this.hop_length = hop_length;
+        this.win_length = win_length;
+        this.n_mels = n_mels;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FeaturePipelineConfig)) {
+            return false;
+        }
+        FeaturePipelineConfig that = (FeaturePipelineConfig) o;
+        return sr == that.sr && n_fft == that.n_fft && hop_length == that.hop_length
+                && win_length == that.win_length && n_mels == that.n_mels;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = sr;
+        result = 31 * result + n_fft;
+        result = 31 * result + hop_length;
+        result = 31 * result + win_length;
+        result = 31 * result + n_mels;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "FeaturePipelineConfig{sr=" + sr + ", n_fft=" + n_fft + ", hop_length=" + hop_length
+                + ", win_length=" + win_length + ", n_mels=" + n_mels + "}";
+    }
+}
@@ -0,0 +1,62 @@
+package com.mobisys.asr;
+
+import be.tarsos.dsp.util.fft.FloatFFT;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 特征提取中与音频无关的常量表：稀疏存储的mel滤波器组、补齐到n_fft的Hann窗和FFT实例
+ * 每组参数只计算一次，之后在所有线程间共享，调用方不能修改返回的数组。
+ * FloatFFT构造后只读取内部的三角函数表，n_fft为2的幂时可以多线程同时使用。
+ */
+public final class FeatureTables {
+    private static final ConcurrentHashMap<FeaturePipelineConfig, FeatureTables> cache = new ConcurrentHashMap<>();
+
+    private final FeaturePipelineConfig config;
+    private final float[] fftWindow;
+    private final MelFilterbank melFilterbank;
+    private final FloatFFT fft;
+
+    private FeatureTables(FeaturePipelineConfig config) {
+        this.config = config;
+        HannPyWindow hannPyWindow = new HannPyWindow();
+        fftWindow = Melspectrogram.pad_center(hannPyWindow.generateCurve(config.win_length), config.n_fft);
+        melFilterbank = new MelFilterbank(Melspectrogram.mel(config.sr, config.n_fft, config.n_mels));
+        fft = new FloatFFT(config.n_fft);
+    }
+
+    /**
+     * 获取一组参数对应的常量表，第一次调用时计算
+     *
+     * @param config ：特征提取参数
+     * @return ：常量表
+     */
+    public static FeatureTables get(FeaturePipelineConfig config) {
+        FeatureTables tables = cache.get(config);
+        if (tables == null) {
+            FeatureTables created = new FeatureTables(config);
+            tables = cache.putIfAbsent(config, created);
+            if (tables == null) {
+                tables = created;
+            }
+        }
+        return tables;
+    }
+
+    public FeaturePipelineConfig getConfig() {
+        return config;
+    }
+
+    // 补齐到n_fft的Hann窗
+    float[] getFftWindow() {
+        return fftWindow;
+    }
+
+    MelFilterbank getMelFilterbank() {
+        return melFilterbank;
+    }
+
+    FloatFFT getFft() {
+        return fft;
+    }
+}
@@ -0,0 +1,214 @@
+package com.mobisys.asr;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.util.Arrays;
+
+/**
+ * 贪心解码
+ * 每帧取joint输出的argmax，输出非空白token后跳过2帧。
+ * 批量模式下，label只在输出非空白token时改变，joint一次计算一批帧[n, dim]，
+ * 找到第一个argmax非空白的帧，输出token后从跳帧之后的位置继续，结果与逐帧计算相同。
+ */
+public class GreedyDecoder implements Decoder {
+    private static final int SKIP_FRAMES = 2;  // 输出token后跳过的音频帧，因为预测帧之后往往都是多个空白帧
+    private static final int DEFAULT_JOINT_BATCH_SIZE = 16;
+
+    private final PredictionCache predictionCache;
+    private final Module joint;
+    private final Dictionary dictionary;
+    private final int maxLabelLen;
+    private boolean batched = false;
+    private int jointBatchSize = DEFAULT_JOINT_BATCH_SIZE;
+
+    private long[] tokens = new long[]{0};
+    private Tensor label_tensor = null;  // decoder对当前token序列的输出，仅最后一帧
+    private float[] label_output = null;
+    private int skip_frames = 0;  // 上次输出token后还需要跳过的音频帧，可能跨越两次调用
+
+    // 批量joint时重复label_output得到的[n, dim]输入
+    private FeatureBuffer label_block = null;
+    private int label_block_rows = 0;
+
+    /**
+     * @param predictionCache ：decoder输出缓存
+     * @param joint           ：joint模块
+     * @param dictionary      ：字典
+     * @param maxLabelLen     ：送入decoder的最多token数
+     */
+    public GreedyDecoder(PredictionCache predictionCache, Module joint, Dictionary dictionary, int maxLabelLen) {
+        this.predictionCache = predictionCache;
+        this.joint = joint;
+        this.dictionary = dictionary;
+        this.maxLabelLen = maxLabelLen;
+    }
+
+    /**
+     * 是否批量计算joint
+     * 取代原来的RecognitionSession.setDecodeMode(DecodeMode.BATCHED_GREEDY)：会话不再区分解码策略，
+     * 批量joint只是贪心解码的选项
+     */
+    public void setBatched(boolean batched) {
+        this.batched = batched;
+    }
+
+    public boolean isBatched() {
+        return batched;
+    }
+
+    /**
+     * 批量joint时每次最多计算的帧数
+     */
+    public void setJointBatchSize(int jointBatchSize) {
+        this.jointBatchSize = Math.max(1, jointBatchSize);
+    }
+
+    @Override
+    public String decode(FeatureBuffer encoder_output, int rowStart, int time_steps) {
+        StringBuilder stringBuilder = new StringBuilder();
+        int i;
+        if (batched) {
+            i = decodeBatched(encoder_output, rowStart, time_steps, stringBuilder);
+        } else {
+            i = decodeFrames(encoder_output, rowStart, time_steps, stringBuilder);
+        }
+        // 跳帧可能超出本次的帧数，超出部分在下次调用时跳过
+        skip_frames = i - time_steps;
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 贪心解码每一帧都已确定，没有剩余的文本
+     */
+    @Override
+    public String finish() {
+        return "";
+    }
+
+    @Override
+    public void reset() {
+        tokens = new long[]{0};
+        label_tensor = null;
+        label_output = null;
+        label_block_rows = 0;
+        skip_frames = 0;
+    }
+
+    /**
+     * 逐帧调用joint
+     *
+     * @return ：结束时的帧位置
+     */
+    private int decodeFrames(FeatureBuffer encoder_output, int rowStart, int time_steps, StringBuilder stringBuilder) {
+        int feature_dim = encoder_output.getDim();
+        int i;
+        for (i = skip_frames; i < time_steps; i++) {
+            // label -> decoder -> label_output
+            if (label_tensor == null) {
+                forwardDecoder();
+            }
+            Tensor frame_tensor = encoder_output.toTensor(rowStart + i, 1, new long[]{feature_dim});
+
+            Tensor joint_output = joint.forward(IValue.from(frame_tensor), IValue.from(label_tensor)).toTensor();
+            float[] joint_output_list = joint_output.getDataAsFloatArray();
+            int max_index = AsrModel.argmax(joint_output_list);
+            if (max_index != 0) {
+                emit(max_index, stringBuilder);
+                i += SKIP_FRAMES;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * 一次计算一批帧，找到第一个非空白输出
+     *
+     * @return ：结束时的帧位置
+     */
+    private int decodeBatched(FeatureBuffer encoder_output, int rowStart, int time_steps, StringBuilder stringBuilder) {
+        int feature_dim = encoder_output.getDim();
+        int i = skip_frames;
+        while (i < time_steps) {
+            if (label_tensor == null) {
+                forwardDecoder();
+            }
+            int n = Math.min(jointBatchSize, time_steps - i);
+            Tensor frame_tensor = encoder_output.toTensor(rowStart + i, n, new long[]{n, feature_dim});
+            Tensor label_batch = labelBatch(n);
+
+            float[] joint_output_list = joint.forward(IValue.from(frame_tensor), IValue.from(label_batch)).toTensor().getDataAsFloatArray();
+            int vocab_size = joint_output_list.length / n;
+            int emitted = -1;
+            for (int k = 0; k < n; k++) {
+                int max_index = argmax(joint_output_list, k * vocab_size, vocab_size);
+                if (max_index != 0) {
+                    emit(max_index, stringBuilder);
+                    emitted = k;
+                    break;
+                }
+            }
+            if (emitted >= 0) {
+                i += emitted + 1 + SKIP_FRAMES;
+            } else {
+                i += n;
+            }
+        }
+        return i;
+    }
+
+    private void emit(int index, StringBuilder stringBuilder) {
+        stringBuilder.append(dictionary.index_to_word(index));
+        tokens = appendToken(tokens, index, maxLabelLen);
+        label_tensor = null;
+        label_output = null;
+        label_block_rows = 0;
+    }
+
+    private void forwardDecoder() {
+        label_output = predictionCache.get(tokens);
+        label_tensor = Tensor.fromBlob(label_output, new long[]{label_output.length});
+    }
+
+    /**
+     * 把当前的label_output重复n行，label不变时复用已经填好的行
+     */
+    private Tensor labelBatch(int n) {
+        int feature_dim = label_output.length;
+        if (label_block == null || label_block.getDim() != feature_dim) {
+            label_block = new FeatureBuffer(feature_dim, jointBatchSize);
+            label_block_rows = 0;
+        }
+        if (label_block_rows < n) {
+            label_block.clear();
+            for (int k = 0; k < n; k++) {
+                label_block.append(label_output, 0, 1);
+            }
+            label_block_rows = n;
+        }
+        return label_block.toTensor(0, n, new long[]{n, feature_dim});
+    }
+
+    /**
+     * 在token序列末尾添加一个token，超过maxLabelLen时丢弃最前面的token，返回新的数组
+     */
+    static long[] appendToken(long[] tokens, int token, int maxLabelLen) {
+        int drop = tokens.length + 1 > maxLabelLen ? tokens.length + 1 - maxLabelLen : 0;
+        long[] temp = Arrays.copyOfRange(tokens, drop, tokens.length + 1);
+        temp[temp.length - 1] = token;
+        return temp;
+    }
+
+    static int argmax(float[] data, int offset, int length) {
+        int index = 0;
+        float max = data[offset];
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] >= max) {
+                max = data[offset + i];
+                index = i;
+            }
+        }
+        return index;
+    }
+}
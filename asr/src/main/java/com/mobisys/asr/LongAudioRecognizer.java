@@ -0,0 +1,94 @@
+package com.mobisys.asr;
+
+/**
+ * 长音频识别
+ * 相邻clip之间重叠overlap帧，最后一个clip按实际长度编码，不再补0。
+ * 每个clip只解码自己负责的那部分encoder输出：重叠区域以中点为界，前一半由前一个clip解码，
+ * 后一半由后一个clip解码，每一帧只解码一次，因此重叠区域的token不会重复输出，
+ * 而边界附近的帧两侧都至少有overlap/2帧上下文，跨越边界的词不会被切断。
+ * 可以一次输入全部特征，也可以边提取边输入，缓冲区中只保留尚未编码的帧和重叠部分。
+ * 保存了解码进度，每个音频流使用一个，不是线程安全的。
+ */
+public class LongAudioRecognizer {
+    private final AsrEngine engine;
+    private final int clipLength;
+    private final int overlap;
+    // 缓冲区开头已经解码过的行数（上一个clip负责的重叠部分）
+    private int decodedRows = 0;
+    private FeatureBuffer encoded = null;
+
+    /**
+     * @param engine  ：识别引擎
+     * @param overlap ：相邻clip重叠的帧数，小于clip的最大长度
+     */
+    public LongAudioRecognizer(AsrEngine engine, int overlap) {
+        if (overlap < 0 || overlap >= AsrEngine.MAX_AUDIO_FEATURE_LEN) {
+            throw new IllegalArgumentException("overlap must be in [0, " + AsrEngine.MAX_AUDIO_FEATURE_LEN + "): " + overlap);
+        }
+        this.engine = engine;
+        this.clipLength = AsrEngine.MAX_AUDIO_FEATURE_LEN;
+        this.overlap = overlap;
+    }
+
+    public int getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * 识别缓冲区中能确定不是最后一个的完整clip，识别后丢弃不再需要的行，只保留重叠部分
+     *
+     * @param feature ：特征缓冲区，新的特征帧追加在末尾
+     * @param session ：识别会话
+     * @return ：新识别的文本
+     */
+    public String accept(FeatureBuffer feature, RecognitionSession session) {
+        StringBuilder stringBuilder = new StringBuilder();
+        int step = clipLength - overlap;
+        // 行数正好等于clipLength时可能是最后一个clip，等到后面有新帧或finish时再处理
+        while (feature.getRows() > clipLength) {
+            stringBuilder.append(recognizeClip(feature, clipLength, step + overlap / 2, session));
+            feature.discard(step);
+            decodedRows = overlap / 2;
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 音频结束：识别缓冲区中剩余的帧（不补0），输出解码器尚未确定的文本，之后可以开始新的音频
+     *
+     * @param feature ：特征缓冲区，处理后清空
+     * @param session ：识别会话
+     * @return ：新识别的文本
+     */
+    public String finish(FeatureBuffer feature, RecognitionSession session) {
+        String text = accept(feature, session);
+        int time_steps = feature.getRows();
+        if (time_steps > decodedRows) {
+            text += recognizeClip(feature, time_steps, time_steps, session);
+        }
+        feature.clear();
+        reset();
+        return text + session.finish();
+    }
+
+    public void reset() {
+        decodedRows = 0;
+    }
+
+    /**
+     * 编码缓冲区开头的time_steps行，只解码[decodedRows, keepTo)范围内的帧
+     */
+    private String recognizeClip(FeatureBuffer feature, int time_steps, int keepTo, RecognitionSession session) {
+        float[] encoder_output = engine.encodeClip(feature, 0, time_steps);
+        if (decodedRows == 0 && keepTo == time_steps) {
+            return session.decode(encoder_output, time_steps);
+        }
+        int dim = encoder_output.length / time_steps;
+        if (encoded == null || encoded.getDim() != dim) {
+            encoded = new FeatureBuffer(dim, clipLength);
+        }
+        encoded.clear();
+        encoded.append(encoder_output, 0, time_steps);
+        return session.decode(encoded, decodedRows, keepTo - decodedRows);
+    }
+}
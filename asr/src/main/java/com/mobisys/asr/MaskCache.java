@@ -0,0 +1,123 @@
+package com.mobisys.asr;
+
+import org.pytorch.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 音频上下文遮掩的缓存
+ * mask只由(seq_len, left, right)决定，构造好的[seq_len, seq_len, 1] Tensor按这三个值缓存，
+ * 相同长度的clip和流式编码的每一步直接复用。缓存按元素总数限制大小，超出时淘汰最久未使用的mask。
+ * Tensor只作为encoder的输入读取，可以在多个线程间共享。
+ */
+public final class MaskCache {
+    private final long maxElements;
+    private long elements = 0;
+    private final LinkedHashMap<Long, Tensor> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxElements ：缓存的所有mask的元素总数上限
+     */
+    public MaskCache(long maxElements) {
+        this.maxElements = maxElements;
+    }
+
+    /**
+     * 获取mask，不在缓存中时构造并缓存
+     *
+     * @param seq_len ：序列长度
+     * @param left    ：左上下文
+     * @param right   ：右上下文
+     * @return ：[seq_len, seq_len, 1]的mask
+     */
+    public synchronized Tensor get(int seq_len, int left, int right) {
+        Long key = key(seq_len, left, right);
+        Tensor mask = cache.get(key);
+        if (mask == null) {
+            mask = create(seq_len, left, right);
+            cache.put(key, mask);
+            elements += (long) seq_len * seq_len;
+            evict(key);
+        }
+        return mask;
+    }
+
+    /**
+     * 预先构造常用长度的mask，避免第一次识别时构造
+     *
+     * @param left    ：左上下文
+     * @param right   ：右上下文
+     * @param lengths ：序列长度
+     */
+    public void warmUp(int left, int right, int... lengths) {
+        for (int seq_len : lengths) {
+            get(seq_len, left, right);
+        }
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        elements = 0;
+    }
+
+    private void evict(Long keep) {
+        Iterator<Map.Entry<Long, Tensor>> iterator = cache.entrySet().iterator();
+        while (elements > maxElements && iterator.hasNext()) {
+            Map.Entry<Long, Tensor> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            long seq_len = entry.getKey() >>> 32;
+            elements -= seq_len * seq_len;
+            iterator.remove();
+        }
+    }
+
+    private static Long key(int seq_len, int left, int right) {
+        return ((long) seq_len << 32) | ((long) (left & 0xFFFF) << 16) | (right & 0xFFFF);
+    }
+
+    /**
+     * 直接按[seq_len, seq_len, 1]展开的顺序写入，与flatten(context_mask(...))结果相同
+     */
+    private static Tensor create(int seq_len, int left, int right) {
+        FloatBuffer mask = ByteBuffer.allocateDirect(seq_len * seq_len * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < seq_len; i++) {
+            for (int j = 0; j < seq_len; j++) {
+                mask.put(i - left <= j && j <= i + right ? 0 : 1);
+            }
+        }
+        mask.clear();
+        return Tensor.fromBlob(mask, new long[]{seq_len, seq_len, 1});
+    }
+
+    /**
+     * 批量编码时一个样本的mask，补到seq_len帧：有效帧之间与create相同，有效帧看不到补齐的帧；
+     * 补齐的帧只看自己，避免整行都被遮掩
+     *
+     * @param out     ：从当前位置开始写入seq_len * seq_len个元素
+     * @param seq_len ：补齐后的序列长度
+     * @param length  ：有效帧数
+     * @param left    ：左上下文
+     * @param right   ：右上下文
+     */
+    static void fill(FloatBuffer out, int seq_len, int length, int left, int right) {
+        for (int i = 0; i < seq_len; i++) {
+            for (int j = 0; j < seq_len; j++) {
+                boolean visible = i < length
+                        ? j < length && i - left <= j && j <= i + right
+                        : j == i;
+                out.put(visible ? 0 : 1);
+            }
+        }
+    }
+}
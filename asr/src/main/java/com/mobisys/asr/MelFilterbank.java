@@ -0,0 +1,83 @@
+package com.mobisys.asr;
+
+/**
+ * 稀疏存储的mel滤波器组
+ * 每个mel滤波器是三角形，只在连续的一小段频点上权重非0，
+ * 这里每个mel只保存起始频点、长度和这一段的权重，投影时跳过全部为0的权重。
+ */
+public final class MelFilterbank {
+    private final int n_mels;
+    private final int n_freqs;
+    private final int[] start;    // 第i个mel第一个非0权重的频点
+    private final int[] length;   // 第i个mel非0权重的个数
+    private final int[] offset;   // 第i个mel的权重在weights中的起始位置
+    private final float[] weights;
+
+    /**
+     * 从稠密的滤波器组构造
+     *
+     * @param mel_basis ：[n_mels][1 + n_fft / 2]
+     */
+    public MelFilterbank(float[][] mel_basis) {
+        n_mels = mel_basis.length;
+        n_freqs = mel_basis[0].length;
+        start = new int[n_mels];
+        length = new int[n_mels];
+        offset = new int[n_mels];
+        int total = 0;
+        for (int i = 0; i < n_mels; i++) {
+            int first = 0;
+            while (first < n_freqs && mel_basis[i][first] == 0) {
+                first++;
+            }
+            int last = n_freqs - 1;
+            while (last >= first && mel_basis[i][last] == 0) {
+                last--;
+            }
+            start[i] = first;
+            length[i] = Math.max(0, last - first + 1);
+            offset[i] = total;
+            total += length[i];
+        }
+        weights = new float[total];
+        for (int i = 0; i < n_mels; i++) {
+            System.arraycopy(mel_basis[i], start[i], weights, offset[i], length[i]);
+        }
+    }
+
+    public int getMelNum() {
+        return n_mels;
+    }
+
+    public int getFreqNum() {
+        return n_freqs;
+    }
+
+    /**
+     * 非0权重个数，即每帧投影的乘加次数
+     */
+    public int getWeightNum() {
+        return weights.length;
+    }
+
+    /**
+     * 将一帧功率谱投影到mel
+     * 累加顺序和精度与稠密的矩阵乘法相同，跳过的项都是0，所以结果完全一致
+     *
+     * @param power     ：功率谱
+     * @param powerPos  ：功率谱在数组中的起始位置
+     * @param out       ：输出
+     * @param outPos    ：输出的起始位置，连续写入n_mels个值
+     */
+    public void project(float[] power, int powerPos, float[] out, int outPos) {
+        for (int i = 0; i < n_mels; i++) {
+            double sum = 0;
+            int w = offset[i];
+            int p = powerPos + start[i];
+            for (int k = 0; k < length[i]; k++) {
+                sum += weights[w + k] * power[p + k];
+            }
+            out[outPos + i] = (float) sum;
+        }
+    }
+}
@@ -99,20 +99,34 @@ public class Melspectrogram {
     }
 
     public static float[][] stft(float[] y, int n_fft, int hop_length, int win_length) {
-        HannPyWindow hannPyWindow = new HannPyWindow();
-        float[] fft_window = hannPyWindow.generateCurve(win_length);
-        fft_window = pad_center(fft_window, n_fft);
-        System.out.println(fft_window.length);
+        FeaturePipelineConfig config = FeaturePipelineConfig.DEFAULT;
+        return stft(y, FeatureTables.get(new FeaturePipelineConfig(config.sr, n_fft, hop_length, win_length, config.n_mels)));
+    }
+
+    /**
+     * 使用缓存的窗函数和FFT实例计算功率谱
+     *
+     * @param y      ：音频数据
+     * @param tables ：特征提取常量表
+     * @return ：[帧数][1 + n_fft / 2]
+     */
+    public static float[][] stft(float[] y, FeatureTables tables) {
+        FeaturePipelineConfig config = tables.getConfig();
+        int n_fft = config.n_fft;
+        int hop_length = config.hop_length;
+        float[] fft_window = tables.getFftWindow();
         float[] y_pad = pad(y, n_fft / 2, "reflect");
-        float[][] y_frames = frame(y_pad, n_fft, hop_length);
+        // 直接从填充后的音频中按帧读取，不再复制出每一帧
+        int n_frames = 1 + (y_pad.length - n_fft) / hop_length;
         float[] temp = new float[2 * n_fft];
-        FloatFFT fft = new FloatFFT(n_fft);
+        FloatFFT fft = tables.getFft();
 //        FFT fft = new FFT(n_fft, new HannPyWindow());
-        float[][] stft_matrix = new float[y_frames.length][(int) 1 + n_fft / 2];
+        float[][] stft_matrix = new float[n_frames][(int) 1 + n_fft / 2];
 
-        for (int i = 0; i < y_frames.length; i++) {
-            for (int j = 0; j < y_frames[0].length; j++) {
-                temp[j] = fft_window[j] * y_frames[i][j];
+        for (int i = 0; i < n_frames; i++) {
+            int frame_start = i * hop_length;
+            for (int j = 0; j < n_fft; j++) {
+                temp[j] = fft_window[j] * y_pad[frame_start + j];
             }
 //            fft.realForward(temp);
             fft.realForwardFull(temp);
@@ -181,17 +195,34 @@ public class Melspectrogram {
     }
 
     public static float[][] melspectrogram(float[] y, int sr, int n_fft, int hop_length, int win_length, int n_mels) {
-        float[][] S = stft(y, n_fft, hop_length, win_length);
-        float[][] mel_basis = mel(sr, n_fft, n_mels);
-        float[][] result = new float[mel_basis.length][S.length];
-        for (int i = 0; i < mel_basis.length; i++) {
-            for (int j = 0; j < S.length; j++) {
-                double sum = 0;
-                for (int k = 0; k < S[0].length; k++) {
-                    sum += mel_basis[i][k] * S[j][k];
-                }
-                result[i][j] = (float) sum;
-            }
+        return melspectrogram(y, FeatureTables.get(new FeaturePipelineConfig(sr, n_fft, hop_length, win_length, n_mels)));
+    }
+
+    /**
+     * 使用缓存的mel滤波器组、窗函数和FFT实例计算mel谱
+     *
+     * @param y      ：音频数据
+     * @param tables ：特征提取常量表
+     * @return ：[n_mels][帧数]
+     */
+    public static float[][] melspectrogram(float[] y, FeatureTables tables) {
+        float[][] S = melspectrogram_frames(y, tables);
+        return AudioProcess.T(S);
+    }
+
+    /**
+     * 按时间优先的顺序输出mel谱，省去后续的转置
+     *
+     * @param y      ：音频数据
+     * @param tables ：特征提取常量表
+     * @return ：[帧数][n_mels]
+     */
+    public static float[][] melspectrogram_frames(float[] y, FeatureTables tables) {
+        float[][] S = stft(y, tables);
+        MelFilterbank mel_filterbank = tables.getMelFilterbank();
+        float[][] result = new float[S.length][mel_filterbank.getMelNum()];
+        for (int j = 0; j < S.length; j++) {
+            mel_filterbank.project(S[j], 0, result[j], 0);
         }
         return result;
     }
@@ -0,0 +1,108 @@
+package com.mobisys.asr;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * decoder（预测网络）输出的缓存
+ * decoder的输出只由输入的token序列决定，按token序列的哈希缓存最后一帧的输出，
+ * 束搜索中历史相同的假设、以及多个会话之间都不再重复运行decoder.forward。
+ * 缓存按条目数限制大小，超出时淘汰最久未使用的条目；可以在多个线程间共享。
+ */
+public final class PredictionCache {
+    private final Module decoder;
+    private final int maxEntries;
+    private final LinkedHashMap<Long, Entry> cache;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static final class Entry {
+        final long[] tokens;
+        final float[] output;
+
+        Entry(long[] tokens, float[] output) {
+            this.tokens = tokens;
+            this.output = output;
+        }
+    }
+
+    /**
+     * @param decoder    ：decoder模块
+     * @param maxEntries ：最多缓存的token序列数
+     */
+    public PredictionCache(Module decoder, final int maxEntries) {
+        this.decoder = decoder;
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 获取decoder对token序列的输出，不在缓存中时运行decoder
+     *
+     * @param tokens ：token序列，第一个是起始符0；调用后不能再修改
+     * @return ：最后一帧的输出，只读
+     */
+    public float[] get(long[] tokens) {
+        Long key = hash(tokens);
+        synchronized (this) {
+            Entry entry = cache.get(key);
+            if (entry != null && Arrays.equals(entry.tokens, tokens)) {
+                hits++;
+                return entry.output;
+            }
+            misses++;
+        }
+        float[] output = forward(tokens);
+        synchronized (this) {
+            cache.put(key, new Entry(tokens, output));
+        }
+        return output;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    private float[] forward(long[] tokens) {
+        final Tensor token_tensor = Tensor.fromBlob(tokens, new long[]{1, tokens.length});
+        float[] label_output_list = decoder.forward(IValue.from(token_tensor)).toTensor().getDataAsFloatArray();
+        int feature_dim = label_output_list.length / tokens.length;
+        return Arrays.copyOfRange(label_output_list, label_output_list.length - feature_dim, label_output_list.length);  // 仅取最后一帧
+    }
+
+    /**
+     * token序列的64位FNV-1a哈希
+     */
+    static long hash(long[] tokens) {
+        long hash = 0xcbf29ce484222325L;
+        for (long token : tokens) {
+            hash ^= token;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,416 @@
+package com.mobisys.asr;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 流水线识别
+ * 特征提取 -> encoder -> RNN-T解码 三个阶段各在自己的线程中运行，阶段之间通过有界队列传递，
+ * 不同的音频块可以同时在不同的核上处理。下游处理不过来时队列满，上游的put阻塞，形成反压。
+ * 特征和encoder输出的缓冲区用完后放回各自的池中复用。
+ * flush、reset等控制消息与数据一起按顺序经过每个阶段。
+ * 设置语音活动检测后，特征提取阶段只把语音帧交给encoder，每段语音结束时向下游发送flush。
+ */
+public class RecognitionPipeline {
+    private static final String TAG = "RecognitionPipeline";
+
+    private static final int DATA = 0;
+    private static final int FLUSH = 1;
+    private static final int RESET = 2;
+    private static final int BARRIER = 3;
+
+    private static final class Message {
+        final int type;
+        short[] audio;
+        int length;
+        FeatureBuffer feature;
+        CountDownLatch latch;
+
+        Message(int type) {
+            this.type = type;
+        }
+    }
+
+    private final StreamingFeatureExtractor featureExtractor;
+    private final StreamingEncoder streamingEncoder;
+    private final RecognitionSession session;
+    private final RecognitionScheduler.Listener listener;
+
+    private final BlockingQueue<Message> audioQueue;
+    private final BlockingQueue<Message> featureQueue;
+    private final BlockingQueue<Message> encodedQueue;
+    // 用完的缓冲区
+    private final BlockingQueue<short[]> audioPool;
+    private final BlockingQueue<FeatureBuffer> featurePool;
+    private final BlockingQueue<FeatureBuffer> encodedPool;
+
+    private VoiceActivityDetector voiceActivityDetector = null;
+    // 以下只在特征提取线程中使用：检测之前的特征帧，和正在收集语音帧的缓冲区
+    private FeatureBuffer detectorInput = null;
+    private FeatureBuffer gated = null;
+    private final VoiceActivityDetector.Listener gate = new VoiceActivityDetector.Listener() {
+        @Override
+        public void onSpeech(FeatureBuffer feature, int rowStart, int rowCount) {
+            gated.append(feature, rowStart, rowCount);
+        }
+
+        @Override
+        public void onSegmentEnd() {
+            try {
+                forward(gated, featurePool, featureQueue);
+                featureQueue.put(new Message(FLUSH));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            gated = obtain(featurePool, featureExtractor.getFeatureDim());
+        }
+    };
+
+    private Thread[] threads = null;
+    // 已送入、尚未被特征提取的样本数
+    private final AtomicLong pendingSamples = new AtomicLong();
+    // 各阶段的累计处理时间，毫秒
+    private final AtomicLong featureMillis = new AtomicLong();
+    private final AtomicLong encoderMillis = new AtomicLong();
+    private final AtomicLong searchMillis = new AtomicLong();
+
+    /**
+     * @param engine        ：识别引擎
+     * @param session       ：识别会话，只在解码线程中使用
+     * @param queueCapacity ：每个阶段之间的队列长度
+     * @param listener      ：识别结果回调，在解码线程中调用
+     */
+    public RecognitionPipeline(AsrEngine engine, RecognitionSession session, int queueCapacity, RecognitionScheduler.Listener listener) {
+        this.featureExtractor = new StreamingFeatureExtractor();
+        this.streamingEncoder = engine.createStreamingEncoder();
+        this.session = session;
+        this.listener = listener;
+        audioQueue = new ArrayBlockingQueue<>(queueCapacity);
+        featureQueue = new ArrayBlockingQueue<>(queueCapacity);
+        encodedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        // 队列中、正在处理的和正在写入的缓冲区
+        audioPool = new ArrayBlockingQueue<>(queueCapacity + 2);
+        featurePool = new ArrayBlockingQueue<>(queueCapacity + 2);
+        encodedPool = new ArrayBlockingQueue<>(queueCapacity + 2);
+    }
+
+    /**
+     * 设置语音活动检测，需要在start()之前调用
+     *
+     * @param voiceActivityDetector ：语音活动检测，为null时不检测
+     */
+    public synchronized void setVoiceActivityDetector(VoiceActivityDetector voiceActivityDetector) {
+        if (threads != null) {
+            throw new IllegalStateException("需要在start()之前设置语音活动检测");
+        }
+        this.voiceActivityDetector = voiceActivityDetector;
+        featureExtractor.setVoiceActivityDetector(voiceActivityDetector);
+        detectorInput = new FeatureBuffer(featureExtractor.getFeatureDim());
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return voiceActivityDetector;
+    }
+
+    public synchronized void start() {
+        if (threads != null) {
+            return;
+        }
+        threads = new Thread[]{
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        featureStage();
+                    }
+                }, "asr-feature"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        encoderStage();
+                    }
+                }, "asr-encoder"),
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        searchStage();
+                    }
+                }, "asr-search")
+        };
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * 停止所有阶段，队列中尚未处理的数据被丢弃
+     */
+    public synchronized void shutdown() {
+        if (threads != null) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            threads = null;
+        }
+    }
+
+    /**
+     * 送入一段音频，复制到池中的数组后交给特征提取阶段；队列满时阻塞
+     *
+     * @param audio  ：音频数据
+     * @param offset ：起始位置
+     * @param length ：样本数
+     */
+    public void submit(short[] audio, int offset, int length) throws InterruptedException {
+        short[] copy = audioPool.poll();
+        if (copy == null || copy.length < length) {
+            copy = new short[length];
+        }
+        System.arraycopy(audio, offset, copy, 0, length);
+        Message message = new Message(DATA);
+        message.audio = copy;
+        message.length = length;
+        pendingSamples.addAndGet(length);
+        audioQueue.put(message);
+    }
+
+    /**
+     * 当前音频段结束：识别剩余的音频，输出解码器尚未确定的文本
+     */
+    public void flush() throws InterruptedException {
+        audioQueue.put(new Message(FLUSH));
+    }
+
+    /**
+     * 清空所有阶段的状态，之前送入的音频仍会先被处理
+     */
+    public void reset() throws InterruptedException {
+        audioQueue.put(new Message(RESET));
+    }
+
+    /**
+     * 等待之前送入的数据和控制消息都经过最后一个阶段
+     */
+    public void awaitIdle() throws InterruptedException {
+        Message message = new Message(BARRIER);
+        message.latch = new CountDownLatch(1);
+        audioQueue.put(message);
+        message.latch.await();
+    }
+
+    /**
+     * 各阶段之间排队的消息总数
+     */
+    public int getQueueDepth() {
+        return audioQueue.size() + featureQueue.size() + encodedQueue.size();
+    }
+
+    /**
+     * 已送入、尚未被特征提取的样本数
+     */
+    public long getPendingSamples() {
+        return pendingSamples.get();
+    }
+
+    public long getFeatureMillis() {
+        return featureMillis.get();
+    }
+
+    public long getEncoderMillis() {
+        return encoderMillis.get();
+    }
+
+    public long getSearchMillis() {
+        return searchMillis.get();
+    }
+
+    private void featureStage() {
+        try {
+            while (true) {
+                Message message = audioQueue.take();
+                try {
+                    extractFeature(message);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "feature extraction failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "feature stage stopped");
+        }
+    }
+
+    private void encoderStage() {
+        try {
+            while (true) {
+                Message message = featureQueue.take();
+                try {
+                    encode(message);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "encoding failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "encoder stage stopped");
+        }
+    }
+
+    private void searchStage() {
+        try {
+            while (true) {
+                Message message = encodedQueue.take();
+                try {
+                    search(message);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "decoding failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.d(TAG, "search stage stopped");
+        }
+    }
+
+    private void extractFeature(Message message) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        if (message.type == DATA) {
+            FeatureBuffer feature = obtain(featurePool, featureExtractor.getFeatureDim());
+            try {
+                if (voiceActivityDetector != null) {
+                    detectorInput.clear();
+                    featureExtractor.accept(message.audio, 0, message.length, detectorInput);
+                    gated = feature;
+                    voiceActivityDetector.process(detectorInput, gate);
+                    feature = gated;
+                } else {
+                    featureExtractor.accept(message.audio, 0, message.length, feature);
+                }
+            } finally {
+                pendingSamples.addAndGet(-message.length);
+                audioPool.offer(message.audio);
+            }
+            featureMillis.addAndGet(System.currentTimeMillis() - start);
+            forward(feature, featurePool, featureQueue);
+        } else if (message.type == FLUSH) {
+            // 出错时也要清空特征提取的状态并把flush交给下游，否则之后的音频都无法识别，解码器也不会输出剩余的文本
+            boolean flushed = false;
+            try {
+                FeatureBuffer feature = obtain(featurePool, featureExtractor.getFeatureDim());
+                if (voiceActivityDetector != null) {
+                    detectorInput.clear();
+                    featureExtractor.flush(detectorInput);
+                    gated = feature;
+                    voiceActivityDetector.process(detectorInput, gate);
+                    voiceActivityDetector.flush(gate);
+                    feature = gated;
+                } else {
+                    featureExtractor.flush(feature);
+                }
+                featureMillis.addAndGet(System.currentTimeMillis() - start);
+                forward(feature, featurePool, featureQueue);
+                flushed = true;
+            } finally {
+                featureExtractor.reset();
+                if (!flushed && voiceActivityDetector != null) {
+                    // 检测结果可能与特征帧不再对应
+                    voiceActivityDetector.reset();
+                }
+                featureQueue.put(message);
+            }
+        } else {
+            if (message.type == RESET) {
+                featureExtractor.reset();
+                if (voiceActivityDetector != null) {
+                    voiceActivityDetector.reset();
+                }
+            }
+            featureQueue.put(message);
+        }
+    }
+
+    private void encode(Message message) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        if (message.type == DATA) {
+            FeatureBuffer feature = message.feature;
+            FeatureBuffer encoded;
+            try {
+                encoded = streamingEncoder.encode(feature, 0, feature.getRows());
+            } finally {
+                featurePool.offer(feature);
+            }
+            forwardCopy(encoded, start);
+        } else if (message.type == FLUSH) {
+            try {
+                forwardCopy(streamingEncoder.encodeRemaining(), start);
+            } finally {
+                streamingEncoder.reset();
+                encodedQueue.put(message);
+            }
+        } else {
+            if (message.type == RESET) {
+                streamingEncoder.reset();
+            }
+            encodedQueue.put(message);
+        }
+    }
+
+    private void search(Message message) {
+        long start = System.currentTimeMillis();
+        String text = "";
+        if (message.type == DATA) {
+            FeatureBuffer encoded = message.feature;
+            try {
+                text = session.decode(encoded, 0, encoded.getRows());
+            } finally {
+                encodedPool.offer(encoded);
+            }
+        } else if (message.type == FLUSH) {
+            text = session.finish();
+        } else if (message.type == RESET) {
+            session.reset();
+        } else {
+            message.latch.countDown();
+        }
+        searchMillis.addAndGet(System.currentTimeMillis() - start);
+        if (text.length() > 0) {
+            listener.onText(text);
+        }
+    }
+
+    /**
+     * encoder的输出缓冲区会被下一步复用，复制到池中的缓冲区再交给解码阶段
+     */
+    private void forwardCopy(FeatureBuffer encoded, long start) throws InterruptedException {
+        FeatureBuffer copy = null;
+        if (encoded.getRows() > 0) {
+            copy = obtain(encodedPool, encoded.getDim());
+            copy.append(encoded, 0, encoded.getRows());
+        }
+        encoderMillis.addAndGet(System.currentTimeMillis() - start);
+        if (copy != null) {
+            Message message = new Message(DATA);
+            message.feature = copy;
+            encodedQueue.put(message);
+        }
+    }
+
+    private static void forward(FeatureBuffer feature, BlockingQueue<FeatureBuffer> pool, BlockingQueue<Message> queue) throws InterruptedException {
+        if (feature.getRows() == 0) {
+            pool.offer(feature);
+            return;
+        }
+        Message message = new Message(DATA);
+        message.feature = feature;
+        queue.put(message);
+    }
+
+    private static FeatureBuffer obtain(BlockingQueue<FeatureBuffer> pool, int dim) {
+        FeatureBuffer buffer = pool.poll();
+        if (buffer == null || buffer.getDim() != dim) {
+            buffer = new FeatureBuffer(dim);
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
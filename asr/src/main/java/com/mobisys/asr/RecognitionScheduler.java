@@ -0,0 +1,312 @@
+package com.mobisys.asr;
+
+import android.util.Log;
+
+import com.dreamfish.record.AudioRingBuffer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 识别调度
+ * 识别线程在没有足够音频时挂起，录音线程写入音频后调用onAudioAvailable()，
+ * 凑够一个chunk（默认为流式编码一步的音频长度）才唤醒识别线程，延迟由chunk大小决定。
+ * 暂停或停止录音时调用flush()，识别剩余的音频并结束当前音频段。
+ * 录音线程只做一次无锁的唤醒，不会等待识别。
+ * 启用流水线后，调度线程只把音频交给RecognitionPipeline，特征提取、encoder和解码在各自的线程中并行。
+ */
+public class RecognitionScheduler {
+    /**
+     * 识别结果回调，在识别线程中调用
+     */
+    public interface Listener {
+        void onText(String text);
+    }
+
+    private static final String TAG = "RecognitionScheduler";
+
+    private final AudioRingBuffer audio;
+    private final Listener listener;
+    private final int sampleRate;
+    private volatile int chunkSamples;
+
+    private final AsrSession session;
+    private final AudioRingBuffer.SampleReader sessionInput;
+    private final StringBuilder text = new StringBuilder();
+    private RecognitionPipeline pipeline = null;
+    private AudioRingBuffer.SampleReader pipelineInput = null;
+    private VoiceActivityDetector voiceActivityDetector = null;
+
+    // 识别过程与reset()之间的锁，录音线程不使用
+    private final Object lock = new Object();
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private volatile boolean flushRequested = false;
+    // flush()时环形缓冲区的写入位置，之后写入的音频属于下一段
+    private volatile long flushMark = 0;
+    // 统计
+    private volatile long lagMillis = 0;
+    private volatile long processMillis = 0;
+    private volatile long processedChunks = 0;
+
+    /**
+     * @param engine      ：识别引擎
+     * @param audio       ：录音数据的环形缓冲区
+     * @param chunkMillis ：每次识别的音频长度，毫秒
+     * @param listener    ：识别结果回调
+     */
+    public RecognitionScheduler(AsrEngine engine, AudioRingBuffer audio, int chunkMillis, Listener listener) {
+        this(engine.createSession(), audio, chunkMillis, listener);
+    }
+
+    /**
+     * @param session     ：识别会话，只在调度线程（或流水线）中使用
+     * @param audio       ：录音数据的环形缓冲区
+     * @param chunkMillis ：每次识别的音频长度，毫秒
+     * @param listener    ：识别结果回调
+     */
+    public RecognitionScheduler(AsrSession session, AudioRingBuffer audio, int chunkMillis, Listener listener) {
+        this.audio = audio;
+        this.listener = listener;
+        this.sampleRate = FeaturePipelineConfig.DEFAULT.sr;
+        this.session = session;
+        this.sessionInput = new AudioRingBuffer.SampleReader() {
+            @Override
+            public void read(short[] data, int offset, int length) {
+                text.append(RecognitionScheduler.this.session.accept(data, offset, length));
+            }
+        };
+        setChunkMillis(chunkMillis);
+    }
+
+    /**
+     * 流式编码一步对应的音频长度：每步的特征帧数 * 下采样后每帧30ms
+     */
+    public static int encoderStepMillis() {
+        FeaturePipelineConfig config = FeaturePipelineConfig.DEFAULT;
+        return AsrEngine.getStreamingChunkSize() * 3 * config.hop_length * 1000 / config.sr;
+    }
+
+    public void setChunkMillis(int chunkMillis) {
+        this.chunkSamples = Math.max(1, chunkMillis * sampleRate / 1000);
+    }
+
+    public int getChunkMillis() {
+        return chunkSamples * 1000 / sampleRate;
+    }
+
+    /**
+     * 使用流水线识别，需要在start()之前调用
+     *
+     * @param queueCapacity ：流水线每个阶段之间的队列长度
+     */
+    public synchronized void enablePipeline(int queueCapacity) {
+        if (thread != null) {
+            throw new IllegalStateException("需要在start()之前启用流水线");
+        }
+        pipeline = new RecognitionPipeline(session.getEngine(), session.getRecognitionSession(), queueCapacity, listener);
+        pipelineInput = new AudioRingBuffer.SampleReader() {
+            @Override
+            public void read(short[] data, int offset, int length) {
+                try {
+                    pipeline.submit(data, offset, length);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    /**
+     * 跳过静音，只识别语音段，每段语音结束时输出解码器尚未确定的文本；需要在start()之前调用
+     *
+     * @param voiceActivityDetector ：语音活动检测，为null时不检测
+     */
+    public synchronized void enableVoiceActivityDetection(VoiceActivityDetector voiceActivityDetector) {
+        if (thread != null) {
+            throw new IllegalStateException("需要在start()之前启用语音活动检测");
+        }
+        this.voiceActivityDetector = voiceActivityDetector;
+    }
+
+    public VoiceActivityDetector getVoiceActivityDetector() {
+        return voiceActivityDetector;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        if (pipeline != null) {
+            pipeline.setVoiceActivityDetector(voiceActivityDetector);
+            pipeline.start();
+        } else {
+            session.enableVoiceActivityDetection(voiceActivityDetector);
+        }
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "asr-scheduler");
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            thread = null;
+        }
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
+    /**
+     * 录音线程写入音频之后调用，凑够一个chunk时唤醒识别线程
+     */
+    public void onAudioAvailable() {
+        if (audio.available() >= chunkSamples) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * 暂停或停止录音时调用，识别到目前为止写入的音频并结束当前音频段
+     */
+    public void flush() {
+        // 先记录位置再设置标记，识别线程看到标记时一定能看到位置
+        flushMark = audio.getWriteCursor();
+        flushRequested = true;
+        wakeUp();
+    }
+
+    /**
+     * 清空音频和识别状态，等待正在进行的识别结束；录音线程不能同时写入
+     */
+    public void reset() {
+        synchronized (lock) {
+            flushRequested = false;
+            flushMark = 0;
+            audio.reset();
+            if (pipeline != null) {
+                try {
+                    pipeline.reset();
+                    pipeline.awaitIdle();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            session.reset();
+            lagMillis = 0;
+        }
+    }
+
+    public AsrSession getSession() {
+        return session;
+    }
+
+    public RecognitionPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * 等待识别的完整chunk数，加上流水线中排队的消息数
+     */
+    public int getQueueDepth() {
+        int depth = audio.available() / chunkSamples;
+        if (pipeline != null) {
+            depth += pipeline.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * 最近一次识别结束时，尚未识别的音频长度，毫秒；流水线模式下包括已送入流水线、尚未提取特征的音频
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * 最近一次识别的耗时，毫秒
+     */
+    public long getProcessMillis() {
+        return processMillis;
+    }
+
+    public long getProcessedChunks() {
+        return processedChunks;
+    }
+
+    private void wakeUp() {
+        Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            // 先检查flush标记，再读取可用样本数；flush只处理到flush()时的写入位置
+            boolean flush = flushRequested;
+            int available = audio.available();
+            if (available < chunkSamples && !flush) {
+                // unpark可能发生在park之前，此时park立即返回，不会丢失唤醒
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                process(flush);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "recognition failed", e);
+            }
+        }
+    }
+
+    private void process(boolean flush) {
+        String result;
+        long start = System.currentTimeMillis();
+        synchronized (lock) {
+            // 检查标记之后才调用的flush()也在这一轮处理，避免之后写入的音频先被当作当前段识别
+            flush = flush || flushRequested;
+            // 识别所有已到达的音频；不足一个chunk时只在flush时处理
+            int available = audio.available();
+            if (flush) {
+                flushRequested = false;
+                // 清除标记之后再读取位置，flush()在此之后再次调用时在下一轮处理
+                available = (int) Math.max(0, Math.min(available, flushMark - audio.getReadCursor()));
+            } else if (available < chunkSamples) {
+                return;
+            }
+            if (pipeline != null) {
+                // 识别结果由流水线的解码线程回调
+                audio.consume(available, pipelineInput);
+                if (flush) {
+                    try {
+                        pipeline.flush();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                processedChunks++;
+                processMillis = System.currentTimeMillis() - start;
+                lagMillis = (audio.available() + pipeline.getPendingSamples()) * 1000L / sampleRate;
+                return;
+            }
+            text.setLength(0);
+            audio.consume(available, sessionInput);
+            if (flush) {
+                text.append(session.flush());
+            }
+            result = text.toString();
+            processedChunks++;
+            processMillis = System.currentTimeMillis() - start;
+            lagMillis = audio.available() * 1000L / sampleRate;
+        }
+        if (result.length() > 0) {
+            listener.onText(result);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.mobisys.asr;
+
+/**
+ * 识别会话
+ * 保存一段音频的解码状态和识别文本，解码策略由Decoder决定（贪心或束搜索）。
+ * 同一段音频的多次识别（切分的clip、流式输入的分段）使用同一个会话。
+ */
+public class RecognitionSession {
+    private final Decoder decoder;
+    private final StringBuilder transcript = new StringBuilder();
+    // float[][]输入使用的临时缓冲区
+    private FeatureBuffer scratch = null;
+
+    public RecognitionSession(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    public Decoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * 解码encoder的输出，接着上次调用的状态继续
+     *
+     * @param encoder_output_matrix ：encoder输出，[time_steps, feature_dim]
+     * @return ：本次新识别的文本
+     */
+    public String decode(float[][] encoder_output_matrix) {
+        if (encoder_output_matrix.length == 0) {
+            return "";
+        }
+        FeatureBuffer buffer = scratch(encoder_output_matrix[0].length);
+        buffer.append(encoder_output_matrix);
+        return decode(buffer, 0, buffer.getRows());
+    }
+
+    /**
+     * 解码展开为一维的encoder输出
+     *
+     * @param encoder_output ：encoder输出，[time_steps * feature_dim]
+     * @param time_steps     ：帧数
+     * @return ：本次新识别的文本
+     */
+    public String decode(float[] encoder_output, int time_steps) {
+        if (time_steps == 0) {
+            return "";
+        }
+        FeatureBuffer buffer = scratch(encoder_output.length / time_steps);
+        buffer.append(encoder_output, 0, time_steps);
+        return decode(buffer, 0, time_steps);
+    }
+
+    /**
+     * 解码缓冲区中第rowStart行开始的time_steps帧encoder输出
+     *
+     * @param encoder_output ：encoder输出
+     * @param rowStart       ：起始行
+     * @param time_steps     ：帧数
+     * @return ：本次新识别的文本
+     */
+    public String decode(FeatureBuffer encoder_output, int rowStart, int time_steps) {
+        if (time_steps == 0) {
+            return "";
+        }
+        String text = decoder.decode(encoder_output, rowStart, time_steps);
+        transcript.append(text);
+        return text;
+    }
+
+    /**
+     * 当前音频段结束，输出解码器尚未确定的文本
+     *
+     * @return ：剩余的文本
+     */
+    public String finish() {
+        String text = decoder.finish();
+        transcript.append(text);
+        return text;
+    }
+
+    /**
+     * 获取会话到目前为止的全部识别文本
+     *
+     * @return ：识别文本
+     */
+    public String getTranscript() {
+        return transcript.toString();
+    }
+
+    /**
+     * 清空解码状态，开始新的会话
+     */
+    public void reset() {
+        decoder.reset();
+        transcript.setLength(0);
+    }
+
+    private FeatureBuffer scratch(int feature_dim) {
+        if (scratch == null || scratch.getDim() != feature_dim) {
+            scratch = new FeatureBuffer(feature_dim);
+        }
+        scratch.clear();
+        return scratch;
+    }
+}
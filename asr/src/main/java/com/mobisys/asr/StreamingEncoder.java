@@ -0,0 +1,145 @@
+package com.mobisys.asr;
+
+import org.pytorch.IValue;
+import org.pytorch.Module;
+import org.pytorch.Tensor;
+
+
+/**
+ * 流式编码
+ * 每次只把新的特征帧送入encoder，前面拼接已编码过的最后left帧作为左上下文，后面等待right帧作为右侧前瞻，
+ * mask只覆盖这个小窗口，因此每一步的计算量与会话长度无关。
+ * encoder是TorchScript模块，只能接收特征输入，所以缓存的是左上下文对应的输入特征帧，而不是encoder的中间输出。
+ */
+public class StreamingEncoder {
+    private final Module encoder;
+    private final MaskCache maskCache;
+    private final int leftContext;
+    private final int rightContext;
+    private final int chunkSize;
+
+    // 前contextRows行是已编码的最后leftContext帧特征，作为下一步的左上下文，之后是等待编码的特征帧
+    private FeatureBuffer window = null;
+    private int contextRows = 0;
+    // 编码结果，每次调用时复用
+    private FeatureBuffer output = new FeatureBuffer(AudioProcess.FEATURE_DIM);
+
+    /**
+     * @param encoder      ：encoder模块
+     * @param maskCache    ：mask缓存，每一步的窗口长度只有少数几种
+     * @param leftContext  ：左上下文帧数，与context_mask一致
+     * @param rightContext ：右侧前瞻帧数，与context_mask一致
+     * @param chunkSize    ：每一步编码的新帧数
+     */
+    public StreamingEncoder(Module encoder, MaskCache maskCache, int leftContext, int rightContext, int chunkSize) {
+        this.encoder = encoder;
+        this.maskCache = maskCache;
+        this.leftContext = leftContext;
+        this.rightContext = rightContext;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 输入新的特征帧，返回已经凑够右侧前瞻的帧的编码结果
+     *
+     * @param audio_feature ：特征帧
+     * @return ：编码结果，可能为0帧
+     */
+    public float[][] accept(float[][] audio_feature) {
+        if (audio_feature.length == 0) {
+            return new float[0][];
+        }
+        ensureWindow(audio_feature[0].length);
+        window.append(audio_feature);
+        FeatureBuffer encoded = encodeReady();
+        return encoded.toArray(0, encoded.getRows());
+    }
+
+    /**
+     * 输入缓冲区中第rowStart行开始的rowCount行特征帧
+     *
+     * @param feature  ：特征缓冲区
+     * @param rowStart ：起始行
+     * @param rowCount ：行数
+     * @return ：本次的编码结果，可能为0帧；缓冲区在下次调用时复用
+     */
+    public FeatureBuffer encode(FeatureBuffer feature, int rowStart, int rowCount) {
+        ensureWindow(feature.getDim());
+        window.append(feature, rowStart, rowCount);
+        return encodeReady();
+    }
+
+    /**
+     * 输入结束，编码剩余的帧，末尾的帧右侧前瞻不足
+     *
+     * @return ：剩余帧的编码结果
+     */
+    public float[][] flush() {
+        FeatureBuffer encoded = encodeRemaining();
+        return encoded.toArray(0, encoded.getRows());
+    }
+
+    /**
+     * 输入结束，编码剩余的帧
+     *
+     * @return ：剩余帧的编码结果；缓冲区在下次调用时复用
+     */
+    public FeatureBuffer encodeRemaining() {
+        output.clear();
+        while (window != null && pendingRows() > 0) {
+            int frameNum = Math.min(chunkSize, pendingRows());
+            encodeStep(frameNum, Math.min(rightContext, pendingRows() - frameNum));
+        }
+        return output;
+    }
+
+    /**
+     * 清空缓存的上下文，开始新的音频流
+     */
+    public void reset() {
+        if (window != null) {
+            window.clear();
+        }
+        contextRows = 0;
+    }
+
+    private FeatureBuffer encodeReady() {
+        output.clear();
+        while (pendingRows() >= chunkSize + rightContext) {
+            encodeStep(chunkSize, rightContext);
+        }
+        return output;
+    }
+
+    private int pendingRows() {
+        return window.getRows() - contextRows;
+    }
+
+    private void ensureWindow(int feature_dim) {
+        if (window == null) {
+            window = new FeatureBuffer(feature_dim, leftContext + chunkSize + rightContext);
+        }
+    }
+
+    /**
+     * 编码一步：[左上下文 | frameNum帧新特征 | lookahead帧前瞻]，只取新特征对应的输出
+     * 窗口直接从缓冲区构造Tensor，不复制特征
+     */
+    private void encodeStep(int frameNum, int lookahead) {
+        int left = contextRows;
+        int time_steps = left + frameNum + lookahead;
+        final Tensor audio_tensor = window.toTensor(0, time_steps);
+        final Tensor audio_mask = maskCache.get(time_steps, leftContext, rightContext);
+        float[] encoder_output = encoder.forward(IValue.from(audio_tensor), IValue.from(audio_mask)).toTensor().getDataAsFloatArray();
+        int output_dim = encoder_output.length / time_steps;
+        if (output.getDim() != output_dim) {
+            output = new FeatureBuffer(output_dim, chunkSize);
+        }
+        output.append(encoder_output, left * output_dim, frameNum);
+
+        // 新编码的帧成为上下文，只保留最后leftContext帧
+        int context = Math.min(leftContext, left + frameNum);
+        window.discard(left + frameNum - context);
+        contextRows = context;
+    }
+}
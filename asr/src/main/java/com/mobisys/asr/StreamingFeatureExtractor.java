@@ -0,0 +1,305 @@
+package com.mobisys.asr;
+
+import be.tarsos.dsp.util.fft.FloatFFT;
+
+import java.util.Arrays;
+
+/**
+ * 流式特征提取
+ * 与AudioProcess.get_feature(short[])计算相同的特征（log-mel -> 堆叠 -> 下采样），
+ * 但音频可以按任意长度分块输入，块与块之间保留STFT窗口重叠的样本、堆叠上下文和下采样相位，
+ * 每次只输出新产生的特征帧。全部输入后调用flush()，输出与整段音频一次性提取的结果完全一致。
+ * 只为下采样保留的帧做堆叠，STFT/mel也只计算到最后一个保留帧所需的帧为止。
+ */
+public class StreamingFeatureExtractor {
+    private static final int LEFT_CONTEXT = 3;
+    private static final int SAMPLE_RATIO = 3;
+
+    private final int nFft;
+    private final int hopLength;
+    private final int nMels;
+    private final float[] fftWindow;
+    private final MelFilterbank melFilterbank;
+    private final FloatFFT fft;
+    private final float[] fftBuffer;
+    private final float[] power;
+
+    // 尚未用完的音频样本，samples[0]对应原始音频中的第sampleBase个样本
+    private float[] samples;
+    private int sampleCount = 0;
+    private long sampleBase = 0;
+    private long totalSamples = 0;
+
+    // 下一个待计算的STFT帧序号
+    private long frameIndex = 0;
+    // 最近LEFT_CONTEXT+1帧log-mel，按frameIndex取模循环使用
+    private final float[][] history;
+    private boolean finished = false;
+    // 工作量统计
+    private long computedFrames = 0;
+    private long stackedRows = 0;
+    // float[][]接口使用的临时缓冲区
+    private final FeatureBuffer scratch;
+    private VoiceActivityDetector voiceActivityDetector = null;
+
+    public StreamingFeatureExtractor() {
+        this(FeaturePipelineConfig.DEFAULT);
+    }
+
+    public StreamingFeatureExtractor(FeaturePipelineConfig config) {
+        FeatureTables tables = FeatureTables.get(config);
+        nFft = config.n_fft;
+        hopLength = config.hop_length;
+        nMels = config.n_mels;
+        fftWindow = tables.getFftWindow();
+        melFilterbank = tables.getMelFilterbank();
+        fft = tables.getFft();
+        fftBuffer = new float[2 * nFft];
+        power = new float[1 + nFft / 2];
+        samples = new float[4 * nFft];
+        history = new float[LEFT_CONTEXT + 1][nMels];
+        scratch = new FeatureBuffer(getFeatureDim());
+    }
+
+    public float[][] accept(short[] audio) {
+        return accept(audio, 0, audio.length);
+    }
+
+    /**
+     * 输入一段音频，返回这段音频新产生的特征帧
+     *
+     * @param audio  ：音频数据
+     * @param offset ：起始位置
+     * @param length ：样本数
+     * @return ：新的特征帧，可能为0帧
+     */
+    public float[][] accept(short[] audio, int offset, int length) {
+        scratch.clear();
+        int rows = accept(audio, offset, length, scratch);
+        return scratch.toArray(0, rows);
+    }
+
+    /**
+     * 输入一段音频，新产生的特征帧直接追加到out末尾，不产生中间数组
+     *
+     * @param audio  ：音频数据
+     * @param offset ：起始位置
+     * @param length ：样本数
+     * @param out    ：输出缓冲区，每行getFeatureDim()维
+     * @return ：新的特征帧数
+     */
+    public int accept(short[] audio, int offset, int length, FeatureBuffer out) {
+        checkNotFinished();
+        ensureCapacity(sampleCount + length);
+        for (int i = 0; i < length; i++) {
+            samples[sampleCount + i] = audio[offset + i];
+        }
+        return samplesAdded(length, out);
+    }
+
+    /**
+     * 输入一段float格式的音频，新产生的特征帧直接追加到out末尾
+     */
+    public int accept(float[] audio, int offset, int length, FeatureBuffer out) {
+        checkNotFinished();
+        ensureCapacity(sampleCount + length);
+        System.arraycopy(audio, offset, samples, sampleCount, length);
+        return samplesAdded(length, out);
+    }
+
+    /**
+     * 音频输入结束，按右侧reflect填充计算剩余的帧
+     *
+     * @return ：剩余的特征帧
+     */
+    public float[][] flush() {
+        scratch.clear();
+        int rows = flush(scratch);
+        return scratch.toArray(0, rows);
+    }
+
+    /**
+     * 音频输入结束，剩余的帧追加到out末尾
+     *
+     * @param out ：输出缓冲区
+     * @return ：新的特征帧数
+     */
+    public int flush(FeatureBuffer out) {
+        finished = true;
+        int rows = out.getRows();
+        if (totalSamples > 0) {
+            long frameNum = 1 + totalSamples / hopLength;
+            // 最后一个保留帧之后的帧不会被任何输出用到，不再计算
+            computeFramesUntil(lastRetainedFrame(frameNum - 1), out);
+        }
+        return out.getRows() - rows;
+    }
+
+    /**
+     * 不超过lastFrame的最后一个被下采样保留的帧
+     * 保留帧t堆叠t-3..t，计算到t就能输出；t之后的帧要等下一个保留帧t+3才用到
+     *
+     * @param lastFrame ：可以计算的最后一帧
+     * @return ：需要计算到的帧，-1表示不需要计算
+     */
+    static long lastRetainedFrame(long lastFrame) {
+        if (lastFrame < 0) {
+            return -1;
+        }
+        return lastFrame - lastFrame % SAMPLE_RATIO;
+    }
+
+    /**
+     * 已计算的STFT/mel帧数
+     */
+    public long getComputedFrames() {
+        return computedFrames;
+    }
+
+    /**
+     * 已堆叠输出的特征帧数
+     */
+    public long getStackedRows() {
+        return stackedRows;
+    }
+
+    /**
+     * 把每个STFT帧的功率谱交给语音活动检测，每输出一个特征帧记录一次判断结果
+     *
+     * @param voiceActivityDetector ：语音活动检测，为null时不检测
+     */
+    public void setVoiceActivityDetector(VoiceActivityDetector voiceActivityDetector) {
+        this.voiceActivityDetector = voiceActivityDetector;
+    }
+
+    /**
+     * 每个特征帧的维数：(LEFT_CONTEXT + 1) * n_mels
+     */
+    public int getFeatureDim() {
+        return (LEFT_CONTEXT + 1) * nMels;
+    }
+
+    private int samplesAdded(int length, FeatureBuffer out) {
+        sampleCount += length;
+        totalSamples += length;
+
+        int rows = out.getRows();
+        // 只计算右边不需要reflect填充的帧，其余的等后续音频或flush
+        long available = totalSamples - nFft / 2 - 1;
+        if (available >= 0) {
+            computeFramesUntil(lastRetainedFrame(available / hopLength), out);
+        }
+        discardConsumedSamples();
+        return out.getRows() - rows;
+    }
+
+    private void computeFramesUntil(long lastFrame, FeatureBuffer out) {
+        while (frameIndex <= lastFrame) {
+            computeFrame(out);
+        }
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("flush()之后需要先reset()");
+        }
+    }
+
+    /**
+     * 清空状态，开始新的音频流
+     */
+    public void reset() {
+        sampleCount = 0;
+        sampleBase = 0;
+        totalSamples = 0;
+        frameIndex = 0;
+        finished = false;
+        computedFrames = 0;
+        stackedRows = 0;
+        for (float[] frame : history) {
+            Arrays.fill(frame, 0);
+        }
+    }
+
+    private void computeFrame(FeatureBuffer out) {
+        long start = frameIndex * hopLength - nFft / 2;
+        for (int j = 0; j < nFft; j++) {
+            fftBuffer[j] = fftWindow[j] * sample(start + j);
+        }
+        fft.realForwardFull(fftBuffer);
+        for (int k = 0; k < power.length; k++) {
+            int realIndex = 2 * k;
+            int imgIndex = 2 * k + 1;
+            if (realIndex == nFft)
+                power[k] = fftBuffer[realIndex] * fftBuffer[realIndex];
+            else
+                power[k] = fftBuffer[realIndex] * fftBuffer[realIndex] + fftBuffer[imgIndex] * fftBuffer[imgIndex];
+        }
+
+        if (voiceActivityDetector != null) {
+            voiceActivityDetector.analyze(power);
+        }
+
+        float[] logMel = history[(int) (frameIndex % history.length)];
+        melFilterbank.project(power, 0, logMel, 0);
+        for (int i = 0; i < nMels; i++) {
+            logMel[i] = logMel[i] != 0 ? (float) Math.log(logMel[i]) : 0;
+        }
+
+        // 下采样只保留 t % 3 == 0 的帧，只为这些帧堆叠 t-3..t 共4帧，不足的补0
+        if (frameIndex % SAMPLE_RATIO == 0) {
+            int row = out.addRow();
+            stackedRows++;
+            if (voiceActivityDetector != null) {
+                voiceActivityDetector.endRow();
+            }
+            for (int k = 0; k <= LEFT_CONTEXT; k++) {
+                long t = frameIndex - LEFT_CONTEXT + k;
+                if (t >= 0) {
+                    out.put(row, k * nMels, history[(int) (t % history.length)], 0, nMels);
+                }
+            }
+        }
+        frameIndex++;
+        computedFrames++;
+    }
+
+    /**
+     * 取原始音频第index个样本，越界时与Melspectrogram.pad(y, n, "reflect")的结果一致
+     */
+    private float sample(long index) {
+        if (index < 0) {
+            index = -index;
+            if (index >= totalSamples) {
+                return 0;
+            }
+        } else if (index >= totalSamples) {
+            index = 2 * totalSamples - 2 - index;
+            if (index < 0) {
+                return 0;
+            }
+        }
+        return samples[(int) (index - sampleBase)];
+    }
+
+    /**
+     * 丢弃后续帧不再需要的样本
+     */
+    private void discardConsumedSamples() {
+        long keepFrom = Math.max(0, frameIndex * hopLength - nFft / 2);
+        int drop = (int) Math.min(keepFrom - sampleBase, sampleCount);
+        if (drop > 0) {
+            System.arraycopy(samples, drop, samples, 0, sampleCount - drop);
+            sampleCount -= drop;
+            sampleBase += drop;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > samples.length) {
+            float[] temp = new float[Math.max(capacity, samples.length * 2)];
+            System.arraycopy(samples, 0, temp, 0, sampleCount);
+            samples = temp;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.mobisys.asr;
+
+/**
+ * 语音活动检测
+ * 直接使用特征提取时每个STFT帧已经算好的功率谱，按帧能量和谱通量判断是否为语音：
+ * 能量比背景噪声高出energyThresholdDb，或者能量略高且谱通量较大（音素切换）时为语音。
+ * 背景噪声取能量的最小值，并缓慢上升以跟踪环境变化；初始估计不超过安静室内的噪声水平。
+ * 一个特征帧（下采样后30ms）内任意一个STFT帧为语音，该特征帧就是语音。
+ * 特征帧经过process()门控：语音帧送入encoder，语音结束后再保留hangoverRows帧，
+ * 语音开始前补上最近的preRollRows帧静音，静音超过hangover时当前语音段结束。
+ * 静音帧不再经过encoder和解码，语音段结束时输出解码器尚未确定的文本。
+ * 保存了检测状态，每个音频流使用一个，不是线程安全的。
+ */
+public class VoiceActivityDetector {
+    /**
+     * 门控结果回调
+     */
+    public interface Listener {
+        /**
+         * 需要识别的特征帧，引用的缓冲区只在回调期间有效
+         */
+        void onSpeech(FeatureBuffer feature, int rowStart, int rowCount);
+
+        /**
+         * 一段语音结束
+         */
+        void onSegmentEnd();
+    }
+
+    private static final double EPSILON = 1e-10;
+    // 背景噪声每个STFT帧上升的dB数，100帧/秒时约为每秒2dB
+    private static final float NOISE_FLOOR_RISE_DB = 0.02f;
+    // 背景噪声的初始估计上限，约为安静室内的噪声（标准差15左右），录音一开始就说话时也能检测到；
+    // 前100帧（1秒）上升得更快，较吵的环境中很快收敛
+    private static final float INITIAL_NOISE_FLOOR_DB = 70;
+    private static final int INITIAL_FRAMES = 100;
+    private static final float INITIAL_NOISE_FLOOR_RISE_DB = 0.2f;
+
+    private final float energyThresholdDb;
+    private final float fluxThreshold;
+    private final float minEnergyDb;
+    private final int hangoverRows;
+    private final int preRollRows;
+
+    // 帧级状态
+    private float noiseFloorDb = Float.NaN;
+    private int analyzedFrames = 0;
+    private float[] previousMagnitude = null;
+    private boolean rowSpeech = false;
+    // 特征提取已输出、尚未门控的特征帧的判断结果
+    private boolean[] pendingFlags = new boolean[64];
+    private int pendingCount = 0;
+    // 门控状态
+    private boolean inSpeech = false;
+    private int silentRun = 0;
+    private FeatureBuffer preRoll = null;
+    // 统计，reset()时清零
+    private long speechRows = 0;
+    private long silenceRows = 0;
+    private long segments = 0;
+
+    /**
+     * 默认参数：阈值12dB，hangover 300ms，pre-roll 210ms
+     */
+    public VoiceActivityDetector() {
+        this(12, 0.3f, 50, 10, 7);
+    }
+
+    /**
+     * @param energyThresholdDb ：能量高出背景噪声多少dB判断为语音
+     * @param fluxThreshold     ：归一化谱通量的阈值，能量高出背景噪声一半阈值且谱通量超过该值时也判断为语音
+     * @param minEnergyDb       ：低于该能量的帧总是静音，避免数字静音之后噪声被当作语音
+     * @param hangoverRows      ：语音结束后继续保留的特征帧数
+     * @param preRollRows       ：语音开始前补上的特征帧数
+     */
+    public VoiceActivityDetector(float energyThresholdDb, float fluxThreshold, float minEnergyDb, int hangoverRows, int preRollRows) {
+        this.energyThresholdDb = energyThresholdDb;
+        this.fluxThreshold = fluxThreshold;
+        this.minEnergyDb = minEnergyDb;
+        this.hangoverRows = hangoverRows;
+        this.preRollRows = preRollRows;
+    }
+
+    /**
+     * 分析一个STFT帧，由StreamingFeatureExtractor在计算功率谱之后调用
+     *
+     * @param power ：功率谱，1 + n_fft / 2个频点
+     */
+    void analyze(float[] power) {
+        if (previousMagnitude == null || previousMagnitude.length != power.length) {
+            previousMagnitude = new float[power.length];
+        }
+        double energy = 0;
+        double flux = 0;
+        double magnitudeSum = 0;
+        for (int k = 0; k < power.length; k++) {
+            energy += power[k];
+            float magnitude = (float) Math.sqrt(power[k]);
+            float diff = magnitude - previousMagnitude[k];
+            if (diff > 0) {
+                flux += diff;
+            }
+            magnitudeSum += magnitude;
+            previousMagnitude[k] = magnitude;
+        }
+        float energyDb = (float) (10 * Math.log10(energy + EPSILON));
+        flux /= magnitudeSum + EPSILON;
+
+        if (Float.isNaN(noiseFloorDb)) {
+            noiseFloorDb = Math.min(energyDb, INITIAL_NOISE_FLOOR_DB);
+        } else if (energyDb < noiseFloorDb) {
+            noiseFloorDb = energyDb;
+        } else {
+            noiseFloorDb += analyzedFrames < INITIAL_FRAMES ? INITIAL_NOISE_FLOOR_RISE_DB : NOISE_FLOOR_RISE_DB;
+        }
+        analyzedFrames++;
+        boolean speech = energyDb >= minEnergyDb
+                && (energyDb > noiseFloorDb + energyThresholdDb
+                || (energyDb > noiseFloorDb + energyThresholdDb / 2 && flux > fluxThreshold));
+        rowSpeech |= speech;
+    }
+
+    /**
+     * 特征提取输出了一个特征帧，记录该帧的判断结果
+     */
+    void endRow() {
+        if (pendingCount == pendingFlags.length) {
+            boolean[] temp = new boolean[pendingFlags.length * 2];
+            System.arraycopy(pendingFlags, 0, temp, 0, pendingCount);
+            pendingFlags = temp;
+        }
+        pendingFlags[pendingCount++] = rowSpeech;
+        rowSpeech = false;
+    }
+
+    /**
+     * 门控特征提取新输出的特征帧
+     *
+     * @param feature  ：特征提取在上一次process()之后输出的全部特征帧
+     * @param listener ：回调
+     */
+    public void process(FeatureBuffer feature, Listener listener) {
+        int rows = feature.getRows();
+        if (rows != pendingCount) {
+            throw new IllegalStateException("特征帧数" + rows + "与检测结果数" + pendingCount + "不一致");
+        }
+        int runStart = -1;
+        for (int row = 0; row < rows; row++) {
+            boolean keep;
+            if (pendingFlags[row]) {
+                if (!inSpeech) {
+                    // 语音开始，先输出pre-roll
+                    inSpeech = true;
+                    if (preRoll != null && preRoll.getRows() > 0) {
+                        speechRows += preRoll.getRows();
+                        silenceRows -= preRoll.getRows();
+                        listener.onSpeech(preRoll, 0, preRoll.getRows());
+                        preRoll.clear();
+                    }
+                }
+                silentRun = 0;
+                keep = true;
+            } else if (inSpeech && ++silentRun <= hangoverRows) {
+                keep = true;
+            } else {
+                keep = false;
+            }
+
+            if (keep) {
+                speechRows++;
+                if (runStart < 0) {
+                    runStart = row;
+                }
+                continue;
+            }
+            if (runStart >= 0) {
+                listener.onSpeech(feature, runStart, row - runStart);
+                runStart = -1;
+            }
+            if (inSpeech) {
+                endSegment(listener);
+            }
+            silenceRows++;
+            keepPreRoll(feature, row);
+        }
+        if (runStart >= 0) {
+            listener.onSpeech(feature, runStart, rows - runStart);
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * 音频结束：如果正在语音段中，结束该语音段
+     */
+    public void flush(Listener listener) {
+        if (inSpeech) {
+            endSegment(listener);
+        }
+        if (preRoll != null) {
+            preRoll.clear();
+        }
+    }
+
+    /**
+     * 清空全部状态，包括背景噪声的估计和统计
+     */
+    public void reset() {
+        noiseFloorDb = Float.NaN;
+        analyzedFrames = 0;
+        previousMagnitude = null;
+        rowSpeech = false;
+        pendingCount = 0;
+        inSpeech = false;
+        silentRun = 0;
+        if (preRoll != null) {
+            preRoll.clear();
+        }
+        speechRows = 0;
+        silenceRows = 0;
+        segments = 0;
+    }
+
+    public boolean isInSpeech() {
+        return inSpeech;
+    }
+
+    /**
+     * 送入encoder的特征帧数，包括hangover和pre-roll
+     */
+    public long getSpeechRows() {
+        return speechRows;
+    }
+
+    /**
+     * 跳过的静音特征帧数
+     */
+    public long getSilenceRows() {
+        return silenceRows;
+    }
+
+    /**
+     * 已结束的语音段数
+     */
+    public long getSegments() {
+        return segments;
+    }
+
+    /**
+     * 当前的背景噪声估计，dB
+     */
+    public float getNoiseFloorDb() {
+        return noiseFloorDb;
+    }
+
+    private void endSegment(Listener listener) {
+        inSpeech = false;
+        silentRun = 0;
+        segments++;
+        listener.onSegmentEnd();
+    }
+
+    private void keepPreRoll(FeatureBuffer feature, int row) {
+        if (preRollRows <= 0) {
+            return;
+        }
+        if (preRoll == null || preRoll.getDim() != feature.getDim()) {
+            preRoll = new FeatureBuffer(feature.getDim(), preRollRows + 1);
+        }
+        preRoll.append(feature, row, 1);
+        if (preRoll.getRows() > preRollRows) {
+            preRoll.discard(preRoll.getRows() - preRollRows);
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package com.mobisys.asr;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * wav文件读取
+ * 文件通过MappedByteBuffer映射到内存，按RIFF chunk解析头部，跳过fmt和data之外的chunk（LIST、fact等）。
+ * 采样数据不复制：16bit的数据可以直接通过getSamples()得到ShortBuffer视图，
+ * 也可以用read()按块读取第一个声道，长录音只占用固定大小的内存。
+ */
 @SuppressWarnings("unused")
 public class WaveFileReader {
     private String filename = null;
@@ -24,8 +34,10 @@ public class WaveFileReader {
     private int bitspersample = 0;
     private String datasubchunk = null;
     private long subchunk2size = 0;
-    private FileInputStream fis = null;
-    private BufferedInputStream bis = null;
+    // data chunk的内容，position为0，limit为数据长度
+    private ByteBuffer samples = null;
+    // read()的当前位置，单位为采样点（每个声道一个）
+    private int position = 0;
 
     private boolean issuccess = false;
 
@@ -61,123 +73,189 @@ public class WaveFileReader {
 
     // 获取数据
     // 数据是一个二维数组，[n][m]代表第n个声道的第m个采样值
+    // 第一次调用时才从映射的文件中复制，只需要第一个声道时使用read()
     public int[][] getData() {
+        if (this.data == null && issuccess) {
+            this.data = new int[this.numchannels][this.len];
+            for (int i = 0; i < this.len; ++i) {
+                for (int n = 0; n < this.numchannels; ++n) {
+                    this.data[n][i] = sample(i, n);
+                }
+            }
+        }
         return this.data;
     }
 
+    /**
+     * 16bit数据的ShortBuffer视图，多声道时交错存放，与映射的文件共享内存
+     *
+     * @return ：视图，不是16bit数据时为null
+     */
+    public ShortBuffer getSamples() {
+        if (!issuccess || bitspersample != 16) {
+            return null;
+        }
+        return samples.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    /**
+     * 从当前位置按块读取第一个声道，8bit数据与getData()一样保留原始的无符号值
+     *
+     * @param dst    ：目标数组
+     * @param offset ：起始位置
+     * @param length ：最多读取的采样数
+     * @return ：读取的采样数，已经读完时为-1
+     */
+    public int read(short[] dst, int offset, int length) {
+        if (!issuccess || position >= len) {
+            return -1;
+        }
+        int count = Math.min(length, len - position);
+        if (bitspersample == 16 && numchannels == 1) {
+            ShortBuffer view = getSamples();
+            view.position(position);
+            view.get(dst, offset, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                dst[offset + i] = (short) sample(position + i, 0);
+            }
+        }
+        position += count;
+        return count;
+    }
+
+    /**
+     * 设置read()的位置
+     *
+     * @param position ：采样点序号
+     */
+    public void seek(int position) {
+        this.position = Math.max(0, Math.min(position, len));
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    private int sample(int index, int channel) {
+        int offset = index * blockalign + channel * (bitspersample / 8);
+        if (this.bitspersample == 8) {
+            return samples.get(offset) & 0xFF;
+        }
+        return samples.getShort(offset);
+    }
+
     private void initReader(String filename) {
         this.filename = filename;
 
+        RandomAccessFile file = null;
         try {
-            fis = new FileInputStream(this.filename);
-            bis = new BufferedInputStream(fis);
+            file = new RandomAccessFile(this.filename, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-            this.chunkdescriptor = readString(WaveConstants.LENCHUNKDESCRIPTOR);
-            if (!chunkdescriptor.endsWith("RIFF"))
+            this.chunkdescriptor = readString(buffer, WaveConstants.LENCHUNKDESCRIPTOR);
+            if (!chunkdescriptor.endsWith(WaveConstants.CHUNKDESCRIPTOR))
                 throw new IllegalArgumentException("RIFF miss, " + filename + " is not a wave file.");
 
-            this.chunksize = readLong();
-            this.waveflag = readString(WaveConstants.LENWAVEFLAG);
-            if (!waveflag.endsWith("WAVE"))
+            this.chunksize = readLong(buffer);
+            this.waveflag = readString(buffer, WaveConstants.LENWAVEFLAG);
+            if (!waveflag.endsWith(WaveConstants.WAVEFLAG))
                 throw new IllegalArgumentException("WAVE miss, " + filename + " is not a wave file.");
 
-            this.fmtsubchunk = readString(WaveConstants.LENFMTSUBCHUNK);
-            if (!fmtsubchunk.endsWith("fmt "))
+            // 依次查找fmt和data chunk，其他chunk跳过
+            while (buffer.remaining() >= 8 && this.datasubchunk == null) {
+                String id = readString(buffer, 4);
+                long size = readLong(buffer);
+                if (id.equals(WaveConstants.FMTSUBCHUNK)) {
+                    this.fmtsubchunk = id;
+                    this.subchunk1size = size;
+                    int next = buffer.position() + (int) size;
+                    this.audioformat = buffer.getShort() & 0xFFFF;
+                    this.numchannels = buffer.getShort() & 0xFFFF;
+                    this.samplerate = readLong(buffer);
+                    this.byterate = readLong(buffer);
+                    this.blockalign = buffer.getShort() & 0xFFFF;
+                    this.bitspersample = buffer.getShort() & 0xFFFF;
+                    skip(buffer, next, size);
+                } else if (id.equals(WaveConstants.DATASUBCHUNK)) {
+                    if (this.fmtsubchunk == null)
+                        throw new IllegalArgumentException("fmt miss, " + filename + " is not a wave file.");
+                    this.datasubchunk = id;
+                    this.subchunk2size = dataSize(buffer, size);
+                    ByteBuffer view = buffer.slice();
+                    view.limit((int) this.subchunk2size);
+                    this.samples = view.order(ByteOrder.LITTLE_ENDIAN);
+                } else {
+                    skip(buffer, buffer.position() + (int) Math.min(size, buffer.remaining()), size);
+                }
+            }
+            if (this.fmtsubchunk == null)
                 throw new IllegalArgumentException("fmt miss, " + filename + " is not a wave file.");
-
-            this.subchunk1size = readLong();
-            this.audioformat = readInt();
-            this.numchannels = readInt();
-            this.samplerate = readLong();
-            this.byterate = readLong();
-            this.blockalign = readInt();
-            this.bitspersample = readInt();
-
-            this.datasubchunk = readString(WaveConstants.LENDATASUBCHUNK);
-            if (!datasubchunk.endsWith("data"))
+            if (this.datasubchunk == null)
                 throw new IllegalArgumentException("data miss, " + filename + " is not a wave file.");
-            this.subchunk2size = readLong();
-
-            this.len = (int) (this.subchunk2size / (this.bitspersample / 8) / this.numchannels);
+            if (this.bitspersample != 8 && this.bitspersample != 16)
+                throw new IllegalArgumentException(this.bitspersample + " bit is not supported, " + filename);
+            if (this.blockalign == 0)
+                this.blockalign = this.numchannels * this.bitspersample / 8;
 
-            this.data = new int[this.numchannels][this.len];
-
-            // 读取数据
-            for (int i = 0; i < this.len; ++i) {
-                for (int n = 0; n < this.numchannels; ++n) {
-                    if (this.bitspersample == 8) {
-                        this.data[n][i] = bis.read();
-                    } else if (this.bitspersample == 16) {
-                        this.data[n][i] = this.readInt();
-                    }
-                }
-            }
+            this.len = (int) (this.subchunk2size / this.blockalign);
 
             issuccess = true;
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
             try {
-                if (bis != null)
-                    bis.close();
-                if (fis != null)
-                    fis.close();
+                // 映射在关闭文件之后仍然有效
+                if (file != null)
+                    file.close();
             } catch (Exception e1) {
                 e1.printStackTrace();
             }
         }
     }
 
-    private String readString(int len) {
-        byte[] buf = new byte[len];
-        try {
-            if (bis.read(buf) != len)
-                throw new IOException("no more data!!!");
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * data chunk的实际长度
+     * 边录音边写的文件在录音中断时长度字段还是占位值：0（RIFF长度也表明data是最后一个chunk）或0xFFFFFFFF，
+     * 长度超出文件时也一样，这些情况以文件剩余的长度为准，并舍去最后不完整的采样点
+     *
+     * @param buffer ：position为data chunk内容的开头
+     * @param size   ：头部中的长度
+     */
+    private long dataSize(ByteBuffer buffer, long size) {
+        long available = buffer.remaining();
+        boolean unpatched = size == 0 && this.chunksize + 8 <= buffer.position();
+        if (!unpatched && size < available) {
+            return size;
         }
-        return new String(buf);
+        int align = this.blockalign != 0 ? this.blockalign : this.numchannels * this.bitspersample / 8;
+        return align > 0 ? available - available % align : available;
     }
 
-    private int readInt() {
-        byte[] buf = new byte[2];
-        int res = 0;
-        try {
-            if (bis.read(buf) != 2)
-                throw new IOException("no more data!!!");
-            res = (buf[0] & 0x000000FF) | (((int) buf[1]) << 8);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * 跳到next，chunk长度为奇数时后面有一个填充字节
+     */
+    private static void skip(ByteBuffer buffer, int next, long size) {
+        if ((size & 1) == 1) {
+            next++;
         }
-        return res;
+        buffer.position(Math.min(next, buffer.limit()));
     }
 
-    private long readLong() {
-        long res = 0;
-        try {
-            long[] l = new long[4];
-            for (int i = 0; i < 4; ++i) {
-                l[i] = bis.read();
-                if (l[i] == -1) {
-                    throw new IOException("no more data!!!");
-                }
-            }
-            res = l[0] | (l[1] << 8) | (l[2] << 16) | (l[3] << 24);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return res;
+    private static String readString(ByteBuffer buffer, int len) throws IOException {
+        if (buffer.remaining() < len)
+            throw new IOException("no more data!!!");
+        byte[] buf = new byte[len];
+        buffer.get(buf);
+        return new String(buf);
     }
 
-    private byte[] readBytes(int len) {
-        byte[] buf = new byte[len];
-        try {
-            if (bis.read(buf) != len)
-                throw new IOException("no more data!!!");
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return buf;
+    private static long readLong(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4)
+            throw new IOException("no more data!!!");
+        return buffer.getInt() & 0xFFFFFFFFL;
     }
 
     public static int[] readSingleChannel(String filename) {
@@ -0,0 +1,101 @@
+package com.mobisys.asr;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BeamSearchDecoderTest {
+    // 词表：0空白，1为a，2为b
+    private static final int A = 1;
+    private static final int B = 2;
+
+    @Test
+    public void finish_mergesPathsWithSameTokens() throws IOException {
+        // "a"由两条路径得到，单独每条都不如"b"中较好的那条，合并后超过"b"的合并结果
+        float[][][] probs = {
+                {{0.4f, 0.35f, 0.25f}},
+                {{0.1f, 0.3f, 0.6f}, {0.5f, 0.25f, 0.25f}, {0.1f, 0.45f, 0.45f}},
+        };
+        BeamSearchDecoder decoder = decoder(probs, 3);
+        assertEquals("", decoder.decode(frames(2), 0, 2));
+        assertEquals("a", decoder.finish());
+    }
+
+    @Test
+    public void decode_commitsCommonPrefix() throws IOException {
+        float[][][] probs = {
+                {{0.01f, 0.98f, 0.01f}},
+                {{0.01f, 0.01f, 0.98f}, {0.5f, 0.01f, 0.49f}},
+                {{0.9f, 0.05f, 0.05f}, {0.2f, 0.1f, 0.7f}, {0.9f, 0.05f, 0.05f}},
+        };
+        BeamSearchDecoder decoder = decoder(probs, 2);
+        FeatureBuffer encoder_output = frames(3);
+        // 两帧之后束中的假设都以a开头
+        assertEquals("a", decoder.decode(encoder_output, 0, 2));
+        assertEquals("", decoder.decode(encoder_output, 2, 1));
+        assertEquals("b", decoder.finish());
+        // finish()之后已输出的部分不再重复
+        assertEquals("", decoder.finish());
+
+        decoder.reset();
+        assertEquals("a", decoder.decode(encoder_output, 0, 2));
+    }
+
+    /**
+     * 用概率表代替decoder和joint：decoder输出最后一个token，
+     * joint输出probs[帧][最后一个token]的对数
+     */
+    private static BeamSearchDecoder decoder(final float[][][] probs, int beamWidth) throws IOException {
+        return new BeamSearchDecoder(null, null, dictionary(), 4, beamWidth, 1) {
+            @Override
+            float[] prediction(long[] tokens) {
+                return new float[]{tokens[tokens.length - 1]};
+            }
+
+            @Override
+            float[] forwardJoint(FeatureBuffer frames, FeatureBuffer labels, int n) {
+                float[][] frame_rows = frames.toArray(0, n);
+                float[][] label_rows = labels.toArray(0, n);
+                float[] output = new float[n * 3];
+                for (int h = 0; h < n; h++) {
+                    float[] row = probs[(int) frame_rows[h][0]][(int) label_rows[h][0]];
+                    for (int token = 0; token < row.length; token++) {
+                        output[h * 3 + token] = (float) Math.log(row[token]);
+                    }
+                }
+                return output;
+            }
+        };
+    }
+
+    /**
+     * 每帧一维，值为帧号
+     */
+    private static FeatureBuffer frames(int count) {
+        FeatureBuffer buffer = new FeatureBuffer(1);
+        for (int t = 0; t < count; t++) {
+            buffer.append(new float[]{t}, 0, 1);
+        }
+        return buffer;
+    }
+
+    private static Dictionary dictionary() throws IOException {
+        File table = File.createTempFile("grapheme_table", ".txt");
+        table.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(table);
+        try {
+            out.write("<blank> 0\na 1\nb 2\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Dictionary dictionary = new Dictionary();
+        dictionary.init(table.getPath(), null);
+        assertEquals("a", dictionary.index_to_word(A));
+        assertEquals("b", dictionary.index_to_word(B));
+        return dictionary;
+    }
+}
@@ -0,0 +1,61 @@
+package com.mobisys.asr;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DictionaryTest {
+    @Test
+    public void init_buildsCacheAndReadsItBack() throws IOException {
+        File table = File.createTempFile("grapheme_table", ".txt");
+        File cache = new File(table.getPath() + ".bin");
+        table.deleteOnExit();
+        cache.deleteOnExit();
+        write(table, "<blank> 0\n我 1\n们 2\n\n好 5\n");
+
+        Dictionary fromText = new Dictionary();
+        fromText.init(table.getPath());
+        assertTrue(cache.isFile());
+
+        Dictionary fromCache = new Dictionary();
+        fromCache.init(table.getPath());
+        for (Dictionary dictionary : new Dictionary[]{fromText, fromCache}) {
+            assertEquals(4, dictionary.size());
+            assertEquals("我", dictionary.index_to_word(1));
+            assertEquals("好", dictionary.index_to_word(5));
+            assertEquals(" ", dictionary.index_to_word(3));
+            assertEquals(" ", dictionary.index_to_word(99));
+            assertEquals(2, dictionary.word_to_index("们"));
+            assertEquals(0, dictionary.word_to_index("不"));
+        }
+    }
+
+    @Test
+    public void init_rebuildsCorruptCache() throws IOException {
+        File table = File.createTempFile("grapheme_table", ".txt");
+        File cache = new File(table.getPath() + ".bin");
+        table.deleteOnExit();
+        cache.deleteOnExit();
+        write(table, "a 0\nb 1\n");
+        write(cache, "not a cache");
+
+        Dictionary dictionary = new Dictionary();
+        dictionary.init(table.getPath());
+        assertEquals("b", dictionary.index_to_word(1));
+        assertEquals(1, dictionary.word_to_index("b"));
+        assertTrue(cache.length() > "not a cache".length());
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
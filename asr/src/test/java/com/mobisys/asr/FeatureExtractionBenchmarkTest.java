@@ -0,0 +1,73 @@
+package com.mobisys.asr;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对比原来的特征提取流程（每一帧都堆叠，再丢弃2/3）和只计算保留帧的流式提取，
+ * 检查两者输出一致，并输出每秒音频的工作量和耗时。
+ */
+public class FeatureExtractionBenchmarkTest {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SECONDS = 30;
+
+    @Test
+    public void streamingExtractor_matchesFullPipeline_withLessWork() {
+        short[] audio = randomAudio(SAMPLE_RATE * SECONDS + 123);
+        float[] audio_data = new float[audio.length];
+        for (int i = 0; i < audio.length; i++) {
+            audio_data[i] = audio[i];
+        }
+        FeatureTables tables = FeatureTables.get(FeaturePipelineConfig.DEFAULT);
+
+        long fullStart = System.nanoTime();
+        float[][] mel = AudioProcess.log(Melspectrogram.melspectrogram_frames(audio_data, tables));
+        float[][] stacked = AudioProcess.concat_frame(mel, 3, 0);
+        float[][] expected = AudioProcess.subsampling(stacked, 3);
+        long fullTime = System.nanoTime() - fullStart;
+
+        StreamingFeatureExtractor extractor = new StreamingFeatureExtractor();
+        FeatureBuffer feature = new FeatureBuffer(extractor.getFeatureDim());
+        long streamStart = System.nanoTime();
+        for (int offset = 0; offset < audio.length; offset += 4800) {
+            extractor.accept(audio, offset, Math.min(4800, audio.length - offset), feature);
+        }
+        extractor.flush(feature);
+        long streamTime = System.nanoTime() - streamStart;
+
+        float[][] actual = feature.toArray(0, feature.getRows());
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], 0f);
+        }
+        assertTrue(extractor.getComputedFrames() <= mel.length);
+        assertEquals(expected.length, extractor.getStackedRows());
+
+        float seconds = audio.length / (float) SAMPLE_RATE;
+        System.out.println(String.format("full pipeline: %.1f mel frames/s, %.1f stacked rows/s, %.2f ms/s",
+                mel.length / seconds, stacked.length / seconds, fullTime / 1e6 / seconds));
+        System.out.println(String.format("streaming:     %.1f mel frames/s, %.1f stacked rows/s, %.2f ms/s",
+                extractor.getComputedFrames() / seconds, extractor.getStackedRows() / seconds, streamTime / 1e6 / seconds));
+    }
+
+    @Test
+    public void lastRetainedFrame_roundsDownToSubsampledFrame() {
+        assertEquals(-1, StreamingFeatureExtractor.lastRetainedFrame(-1));
+        assertEquals(0, StreamingFeatureExtractor.lastRetainedFrame(0));
+        assertEquals(0, StreamingFeatureExtractor.lastRetainedFrame(2));
+        assertEquals(3, StreamingFeatureExtractor.lastRetainedFrame(3));
+        assertEquals(3, StreamingFeatureExtractor.lastRetainedFrame(5));
+    }
+
+    private static short[] randomAudio(int length) {
+        Random random = new Random(0);
+        short[] audio = new short[length];
+        for (int i = 0; i < length; i++) {
+            audio[i] = (short) (random.nextGaussian() * 3000);
+        }
+        return audio;
+    }
+}
@@ -0,0 +1,66 @@
+package com.mobisys.asr;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WaveFileReaderTest {
+    @Test
+    public void unpatchedHeader_usesFileLength() throws IOException {
+        // 录音中断：头部的RIFF和data长度还是0，文件末尾有半个采样点
+        File file = writeWav(0, 0, new short[]{1, -2, 3, 4, 5}, 1);
+        WaveFileReader reader = new WaveFileReader(file.getPath());
+        assertTrue(reader.isSuccess());
+        assertEquals(5, reader.getDataLen());
+        short[] samples = new short[8];
+        assertEquals(5, reader.read(samples, 0, samples.length));
+        assertArrayEquals(new short[]{1, -2, 3, 4, 5}, Arrays.copyOf(samples, 5));
+    }
+
+    @Test
+    public void placeholderMaxLength_usesFileLength() throws IOException {
+        File file = writeWav(0xFFFFFFFF, 0xFFFFFFFF, new short[]{7, 8, 9}, 0);
+        WaveFileReader reader = new WaveFileReader(file.getPath());
+        assertTrue(reader.isSuccess());
+        assertEquals(3, reader.getDataLen());
+    }
+
+    @Test
+    public void patchedHeader_keepsDataLength() throws IOException {
+        // data长度正确时，后面多出的数据不属于data
+        File file = writeWav(36 + 4, 4, new short[]{1, 2, 3}, 0);
+        WaveFileReader reader = new WaveFileReader(file.getPath());
+        assertTrue(reader.isSuccess());
+        assertEquals(2, reader.getDataLen());
+    }
+
+    /**
+     * 16000Hz单声道16bit的wav，头部的长度字段按参数写入
+     */
+    private static File writeWav(int riffSize, int dataSize, short[] samples, int extraBytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(44 + samples.length * 2 + extraBytes).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes("US-ASCII")).putInt(riffSize).put("WAVE".getBytes("US-ASCII"));
+        buffer.put("fmt ".getBytes("US-ASCII")).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(16000).putInt(32000).putShort((short) 2).putShort((short) 16);
+        buffer.put("data".getBytes("US-ASCII")).putInt(dataSize);
+        for (short sample : samples) {
+            buffer.putShort(sample);
+        }
+        File file = File.createTempFile("wave_reader", ".wav");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
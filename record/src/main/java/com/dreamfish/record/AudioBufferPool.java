@@ -0,0 +1,135 @@
+package com.dreamfish.record;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录音缓冲区池
+ * 每个缓冲区是一个本机字节序的direct ByteBuffer，AudioRecord.read(ByteBuffer, int)直接写入，
+ * 同一块内存再通过ShortBuffer视图交给消费者，不复制，也不需要转换字节序。
+ * 缓冲区带引用计数：取出时为1，计数归0时回到池中；池空时新分配，池满时多余的缓冲区交给GC。
+ */
+public class AudioBufferPool {
+    /**
+     * 池中的一个缓冲区
+     */
+    public static final class Buffer {
+        private final AudioBufferPool pool;
+        private final ByteBuffer bytes;
+        private final ShortBuffer samples;
+        private final AtomicInteger refCount = new AtomicInteger();
+
+        private Buffer(AudioBufferPool pool, int capacityInBytes) {
+            this.pool = pool;
+            bytes = ByteBuffer.allocateDirect(capacityInBytes).order(ByteOrder.nativeOrder());
+            samples = bytes.asShortBuffer();
+        }
+
+        /**
+         * 字节视图，position为0，limit为有效字节数
+         */
+        public ByteBuffer getBytes() {
+            return bytes;
+        }
+
+        /**
+         * 16位样本视图，与字节视图共享内存，position为0，limit为有效样本数
+         */
+        public ShortBuffer getSamples() {
+            return samples;
+        }
+
+        public int getSampleCount() {
+            return samples.limit();
+        }
+
+        /**
+         * 增加一次引用，之后需要对应调用一次release()
+         */
+        public Buffer retain() {
+            while (true) {
+                int count = refCount.get();
+                // 先检查再增加，非法调用不改变计数
+                if (count <= 0) {
+                    throw new IllegalStateException("缓冲区已经回到池中");
+                }
+                if (refCount.compareAndSet(count, count + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        /**
+         * 释放一次引用，计数归0时回到池中，之后不能再访问数据
+         */
+        public void release() {
+            int count = refCount.decrementAndGet();
+            if (count == 0) {
+                pool.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("缓冲区重复释放");
+            }
+        }
+
+        /**
+         * 设置有效数据的长度，两个视图都从头开始
+         *
+         * @param lengthInBytes ：有效字节数
+         */
+        void setLength(int lengthInBytes) {
+            bytes.clear();
+            bytes.limit(lengthInBytes);
+            samples.clear();
+            samples.limit(lengthInBytes / 2);
+        }
+    }
+
+    private final int bufferSizeInBytes;
+    private final ArrayBlockingQueue<Buffer> free;
+    private final AtomicLong allocatedCount = new AtomicLong();
+
+    /**
+     * @param bufferSizeInBytes ：每个缓冲区的字节数
+     * @param poolSize          ：池中最多保留的空闲缓冲区个数
+     */
+    public AudioBufferPool(int bufferSizeInBytes, int poolSize) {
+        if (bufferSizeInBytes <= 0) {
+            throw new IllegalArgumentException("bufferSizeInBytes must be positive: " + bufferSizeInBytes);
+        }
+        this.bufferSizeInBytes = bufferSizeInBytes;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * 取出一个缓冲区，引用计数为1，有效长度为整个缓冲区
+     */
+    public Buffer acquire() {
+        Buffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new Buffer(this, bufferSizeInBytes);
+            allocatedCount.incrementAndGet();
+        }
+        buffer.refCount.set(1);
+        buffer.setLength(bufferSizeInBytes);
+        return buffer;
+    }
+
+    public int getBufferSizeInBytes() {
+        return bufferSizeInBytes;
+    }
+
+    /**
+     * 新分配的缓冲区总数，稳定运行时不再增长
+     */
+    public long getAllocatedCount() {
+        return allocatedCount.get();
+    }
+
+    private void recycle(Buffer buffer) {
+        free.offer(buffer);
+    }
+}
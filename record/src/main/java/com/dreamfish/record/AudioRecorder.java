@@ -7,9 +7,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,21 +25,40 @@ public class AudioRecorder {
     private final static int AUDIO_CHANNEL = AudioFormat.CHANNEL_IN_MONO;
     //编码
     private final static int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    // 写入队列最多积压的缓冲区个数，默认缓冲区约40~120ms，至少可以容纳2秒的存储卡顿
+    private final static int WRITE_QUEUE_CAPACITY = 64;
+    // 缓冲区池中保留的空闲缓冲区个数，写入队列满时也不需要新分配
+    private final static int BUFFER_POOL_SIZE = WRITE_QUEUE_CAPACITY + 4;
     // 缓冲区字节大小
     private int bufferSizeInBytes = 0;
+    // 录音格式，写入WAV头部
+    private int sampleRateInHz = AUDIO_SAMPLE_RATE;
+    private int channelCount = 1;
+    private int bitsPerSample = 16;
+    // 录音缓冲区池，缓冲区大小改变时重新创建
+    private AudioBufferPool bufferPool;
 
     //录音对象
     private AudioRecord audioRecord;
 
-    //录音状态
-    private Status status = Status.STATUS_NO_READY;
+    //录音状态，录音线程根据它结束读取
+    private volatile Status status = Status.STATUS_NO_READY;
 
     //文件名
     private String fileName;
 
-    //录音文件
+    //录音片段，每次开始/继续录音为一段，都写在同一个wav文件中
     private List<String> filesName = new ArrayList<>();
 
+    // 本次录音的写入，暂停时更新WAV头部，停止时关闭
+    private RecordingWriter writer;
+    // 正在读取录音数据的线程，它结束之前由它关闭writer；由this保护
+    private Thread captureThread;
+    // 数据最多在内存中停留的时间
+    private long flushIntervalMillis = 200;
+    // 是否同时写入.txt副本
+    private boolean writeTxtCopy = false;
+
 
     /**
      * 类级的内部类，也就是静态类的成员式内部类，该内部类的实例与外部类的实例
@@ -67,8 +84,9 @@ public class AudioRecorder {
     public void createAudio(String fileName, int audioSource, int sampleRateInHz, int channelConfig, int audioFormat) {
         // 获得缓冲区字节大小
         bufferSizeInBytes = AudioRecord.getMinBufferSize(sampleRateInHz,
-                channelConfig, channelConfig);
+                channelConfig, audioFormat);
         audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, bufferSizeInBytes);
+        setFormat(sampleRateInHz, channelConfig, audioFormat);
         this.fileName = fileName;
     }
 
@@ -82,10 +100,17 @@ public class AudioRecorder {
         bufferSizeInBytes = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE,
                 AUDIO_CHANNEL, AUDIO_ENCODING);
         audioRecord = new AudioRecord(AUDIO_INPUT, AUDIO_SAMPLE_RATE, AUDIO_CHANNEL, AUDIO_ENCODING, bufferSizeInBytes);
+        setFormat(AUDIO_SAMPLE_RATE, AUDIO_CHANNEL, AUDIO_ENCODING);
         this.fileName = fileName;
         status = Status.STATUS_READY;
     }
 
+    private void setFormat(int sampleRateInHz, int channelConfig, int audioFormat) {
+        this.sampleRateInHz = sampleRateInHz;
+        this.channelCount = channelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+        this.bitsPerSample = audioFormat == AudioFormat.ENCODING_PCM_8BIT ? 8 : 16;
+    }
+
 
     /**
      * 开始录音
@@ -93,6 +118,19 @@ public class AudioRecorder {
      * @param listener 音频流的监听
      */
     public void startRecord(final RecordStreamListener listener) {
+        start(listener, null);
+    }
+
+    /**
+     * 开始录音，录音数据直接读入池中的direct缓冲区，以16位样本交给监听
+     *
+     * @param listener 音频流的监听
+     */
+    public void startRecord(final RecordShortStreamListener listener) {
+        start(null, listener);
+    }
+
+    private void start(final RecordStreamListener byteListener, final RecordShortStreamListener shortListener) {
 
         if (status == Status.STATUS_NO_READY || TextUtils.isEmpty(fileName)) {
             throw new IllegalStateException("录音尚未初始化,请检查是否禁止了录音权限~");
@@ -101,14 +139,64 @@ public class AudioRecorder {
             throw new IllegalStateException("正在录音");
         }
         Log.d("AudioRecorder", "===startRecord===" + audioRecord.getState());
+        awaitCaptureThread();
+        if (writer == null) {
+            writer = createWriter();
+        }
+        filesName.add(fileName);
+        final RecordingWriter writer = this.writer;
         audioRecord.startRecording();
 
-        new Thread(new Runnable() {
+        Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
-                writeDataTOFile(listener);
+                writeDataTOFile(writer, byteListener, shortListener);
             }
-        }).start();
+        });
+        synchronized (this) {
+            captureThread = thread;
+        }
+        // 在启动线程之前设置，线程开始运行之前就停止录音时不会再进入读取循环
+        status = Status.STATUS_START;
+        thread.start();
+    }
+
+    /**
+     * 设置录音文件的写入方式，下一次开始录音时生效
+     *
+     * @param flushIntervalMillis 数据最多在内存中停留的时间，毫秒，越长每次写入的数据越多
+     * @param writeTxtCopy        是否同时写入.txt副本
+     */
+    public void setWriteOptions(long flushIntervalMillis, boolean writeTxtCopy) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.writeTxtCopy = writeTxtCopy;
+    }
+
+    /**
+     * 本次录音的写入，用于查看写入量和丢弃的数据；没有录音时为null
+     */
+    public RecordingWriter getRecordingWriter() {
+        return writer;
+    }
+
+    /**
+     * 本次录音因为存储太慢而丢弃的缓冲区个数
+     */
+    public long getWriteOverrunCount() {
+        RecordingWriter current = writer;
+        return current != null ? current.getOverrunCount() : 0;
+    }
+
+    /**
+     * 创建本次录音的wav文件和写入线程，暂停之后继续录音时接着写同一个文件
+     */
+    private RecordingWriter createWriter() {
+        File fileForWav = new File(FileUtil.getWavFileAbsolutePath(fileName));
+        File fileForTxt = writeTxtCopy ? new File(FileUtil.getTxtFileAbsolutePath(fileName)) : null;
+        RecordingWriter writer = new RecordingWriter(new WavStreamWriter(fileForWav, sampleRateInHz, channelCount, bitsPerSample),
+                fileForTxt, WRITE_QUEUE_CAPACITY, flushIntervalMillis);
+        writer.start();
+        return writer;
     }
 
     /**
@@ -140,31 +228,12 @@ public class AudioRecorder {
 
     /**
      * 释放资源
+     * wav文件在录音过程中已经写好，这里只需要写完剩余数据并更新头部，不再合并文件
      */
     public void release() {
         Log.d("AudioRecorder", "===release===");
-        //假如有暂停录音
-        try {
-            if (filesName.size() > 0) {
-                List<String> filePaths = new ArrayList<>();
-                for (String fileName : filesName) {
-                    filePaths.add(FileUtil.getPcmFileAbsolutePath(fileName));
-                }
-                //清除
-                filesName.clear();
-                //将多个pcm文件转化为wav文件
-                mergePCMFilesToWAVFile(filePaths);
-
-            } else {
-                //这里由于只要录音过filesName.size都会大于0,没录音时fileName为null
-                //会报空指针 NullPointerException
-                // 将单个pcm文件转化为wav文件
-                //Log.d("AudioRecorder", "=====makePCMFileToWAVFile======");
-                //makePCMFileToWAVFile();
-            }
-        } catch (IllegalStateException e) {
-            throw new IllegalStateException(e.getMessage());
-        }
+        closeWriter();
+        filesName.clear();
 
         if (audioRecord != null) {
             audioRecord.release();
@@ -179,6 +248,7 @@ public class AudioRecorder {
      */
     public void canel() {
         filesName.clear();
+        closeWriter();
         fileName = null;
         if (audioRecord != null) {
             audioRecord.release();
@@ -190,108 +260,87 @@ public class AudioRecorder {
 
 
     /**
-     * 将音频信息写入文件
-     *
-     * @param listener 音频流的监听
+     * 暂停之后马上继续录音时，等待上一段的录音线程读完最后一个缓冲区并更新头部
      */
-    private void writeDataTOFile(RecordStreamListener listener) {
-        // new一个byte数组用来存一些字节数据，大小为缓冲区大小
-        byte[] audiodata = new byte[bufferSizeInBytes];
-
-        FileOutputStream fosForPcm = null;
-        FileOutputStream fosForTxt = null;
-        int readsize = 0;
-        try {
-            String currentFileName = fileName;
-            if (status == Status.STATUS_PAUSE) {
-                //假如是暂停录音 将文件名后面加个数字,防止重名文件内容被覆盖
-                currentFileName += filesName.size();
-            }
-            filesName.add(currentFileName);
-            File fileForPcm = new File(FileUtil.getPcmFileAbsolutePath(currentFileName));
-            File fileForTxt = new File(FileUtil.getTxtFileAbsolutePath(currentFileName));
-            if (fileForPcm.exists()) {
-                fileForPcm.delete();
-            }
-            if (fileForTxt.exists()) {
-                fileForTxt.delete();
-            }
-            fosForPcm = new FileOutputStream(fileForPcm);// 建立一个可存取字节的文件
-            fosForTxt = new FileOutputStream(fileForTxt);
-        } catch (IllegalStateException e) {
-            Log.e("AudioRecorder", e.getMessage());
-            throw new IllegalStateException(e.getMessage());
-        } catch (FileNotFoundException e) {
-            Log.e("AudioRecorder", e.getMessage());
-
+    private void awaitCaptureThread() {
+        Thread previous;
+        synchronized (this) {
+            previous = captureThread;
         }
-        //将录音状态设置成正在录音状态
-        status = Status.STATUS_START;
-        while (status == Status.STATUS_START) {
-            readsize = audioRecord.read(audiodata, 0, bufferSizeInBytes);
-            if (AudioRecord.ERROR_INVALID_OPERATION != readsize && fosForPcm != null && fosForTxt != null) {
-                try {
-                    fosForPcm.write(audiodata);
-                    fosForTxt.write(audiodata);
-                    if (listener != null) {
-                        //用于拓展业务
-                        listener.recordOfByte(audiodata, 0, audiodata.length);
-                    }
-                } catch (IOException e) {
-                    Log.e("AudioRecorder", e.getMessage());
-                }
-            }
+        if (previous == null) {
+            return;
         }
         try {
-            if (fosForPcm != null) {
-                fosForPcm.close();// 关闭写入流
-            }
-            if (fosForTxt != null) {
-                fosForTxt.close();
-            }
-        } catch (IOException e) {
-            Log.e("AudioRecorder", e.getMessage());
+            previous.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * 将pcm合并成wav
-     *
-     * @param filePaths
+     * 关闭本次录音的写入；录音线程还在运行时由它在读完最后一个缓冲区之后关闭，
+     * 否则最后一次读取的数据会因为writer已经关闭而被丢弃
      */
-    private void mergePCMFilesToWAVFile(final List<String> filePaths) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (PcmToWav.mergePCMFilesToWAVFile(filePaths, FileUtil.getWavFileAbsolutePath(fileName))) {
-                    //操作成功
-                } else {
-                    //操作失败
-                    Log.e("AudioRecorder", "mergePCMFilesToWAVFile fail");
-                    throw new IllegalStateException("mergePCMFilesToWAVFile fail");
-                }
-                fileName = null;
-            }
-        }).start();
+    private synchronized void closeWriter() {
+        if (writer != null && captureThread == null) {
+            writer.close();
+        }
+        writer = null;
     }
 
     /**
-     * 将单个pcm文件转化为wav文件
+     * 读取录音数据，交给监听和写入线程
+     * 每次读取直接写入池中的direct缓冲区，只有实际读取的readsize字节写入文件和交给监听；
+     * 这个线程不访问文件系统，存储卡顿时由写入队列吸收
+     *
+     * @param writer        这一段录音的写入
+     * @param byteListener  byte数组形式的监听
+     * @param shortListener 16位样本形式的监听
      */
-    private void makePCMFileToWAVFile() {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (PcmToWav.makePCMFileToWAVFile(FileUtil.getPcmFileAbsolutePath(fileName), FileUtil.getWavFileAbsolutePath(fileName), true)) {
-                    //操作成功
-                } else {
-                    //操作失败
-                    Log.e("AudioRecorder", "makePCMFileToWAVFile fail");
-                    throw new IllegalStateException("makePCMFileToWAVFile fail");
+    private void writeDataTOFile(RecordingWriter writer, RecordStreamListener byteListener, RecordShortStreamListener shortListener) {
+        if (bufferPool == null || bufferPool.getBufferSizeInBytes() != bufferSizeInBytes) {
+            bufferPool = new AudioBufferPool(bufferSizeInBytes, BUFFER_POOL_SIZE);
+        }
+        // 只有byte数组形式的监听需要复制一份数据
+        byte[] audiodata = byteListener != null ? new byte[bufferSizeInBytes] : null;
+        int readsize = 0;
+        while (status == Status.STATUS_START) {
+            AudioBufferPool.Buffer buffer = bufferPool.acquire();
+            try {
+                ByteBuffer bytes = buffer.getBytes();
+                readsize = audioRecord.read(bytes, bufferSizeInBytes);
+                // 出错（负数）或没有读到数据时跳过，不写入上一次残留的数据
+                if (readsize <= 0) {
+                    continue;
+                }
+                buffer.setLength(readsize);
+                //用于拓展业务
+                if (byteListener != null) {
+                    bytes.get(audiodata, 0, readsize);
+                    bytes.rewind();
+                    byteListener.recordOfByte(audiodata, 0, readsize);
                 }
-                fileName = null;
+                if (shortListener != null) {
+                    shortListener.recordOfShort(buffer.getSamples(), buffer);
+                }
+                // 交给写入线程之后不再访问字节视图
+                writer.write(buffer);
+            } finally {
+                buffer.release();
+            }
+        }
+        synchronized (this) {
+            // 暂停之后停止录音时，closeWriter()等到这里之后才能看到captureThread为null，由它关闭
+            if (status == Status.STATUS_PAUSE) {
+                // 暂停时文件已经是完整的wav
+                writer.sync();
+            } else {
+                writer.close();
             }
-        }).start();
+            if (captureThread == Thread.currentThread()) {
+                captureThread = null;
+            }
+        }
     }
 
     /**
@@ -304,7 +353,21 @@ public class AudioRecorder {
     }
 
     /**
-     * 获取本次录音文件的个数
+     * 录音的采样率，转换pcm文件时使用
+     */
+    public int getSampleRateInHz() {
+        return sampleRateInHz;
+    }
+
+    /**
+     * 录音的声道数，转换pcm文件时使用
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * 获取本次录音的片段数，暂停之后继续录音时增加
      *
      * @return
      */
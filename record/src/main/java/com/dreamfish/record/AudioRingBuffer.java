@@ -0,0 +1,172 @@
+package com.dreamfish.record;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 录音数据的环形缓冲区，单生产者/单消费者，无锁
+ * 录音线程写入，识别线程读取，双方只通过两个单调递增的游标同步：
+ * 写游标在数据写入之后更新，读游标在数据读完之后更新，录音线程不会因为识别还在进行而阻塞。
+ * 读取时直接把环形数组中的连续片段交给SampleReader，不复制数据。
+ * 缓冲区满时新的样本被丢弃并计数。
+ */
+public class AudioRingBuffer {
+    /**
+     * 接收环形数组中的一段连续样本，回调返回之后这段数据可能被覆盖
+     */
+    public interface SampleReader {
+        void read(short[] data, int offset, int length);
+    }
+
+    private final short[] buffer;
+    private final int mask;
+    // 已写入和已读取的样本总数，只增不减
+    private volatile long writeCursor = 0;
+    private volatile long readCursor = 0;
+    private volatile long droppedSamples = 0;
+
+    /**
+     * @param capacity ：可容纳的样本数，向上取整为2的幂
+     */
+    public AudioRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        buffer = new short[size];
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * 写入样本，只能在生产者线程调用
+     *
+     * @return ：实际写入的样本数，空间不足时其余样本被丢弃
+     */
+    public int write(short[] data, int offset, int length) {
+        long write = writeCursor;
+        int count = (int) Math.min(length, buffer.length - (write - readCursor));
+        int start = (int) (write & mask);
+        int first = Math.min(count, buffer.length - start);
+        System.arraycopy(data, offset, buffer, start, first);
+        System.arraycopy(data, offset + first, buffer, 0, count - first);
+        return commitWrite(write, count, length);
+    }
+
+    /**
+     * 写入ShortBuffer中position到limit之间的样本，批量复制，direct缓冲区也不逐个读取；只能在生产者线程调用
+     * data的position前进实际写入的样本数
+     *
+     * @return ：实际写入的样本数，空间不足时其余样本被丢弃
+     */
+    public int write(ShortBuffer data) {
+        long write = writeCursor;
+        int length = data.remaining();
+        int count = (int) Math.min(length, buffer.length - (write - readCursor));
+        int start = (int) (write & mask);
+        int first = Math.min(count, buffer.length - start);
+        data.get(buffer, start, first);
+        data.get(buffer, 0, count - first);
+        return commitWrite(write, count, length);
+    }
+
+    /**
+     * 写入16位小端PCM字节，直接转换到环形数组，不产生中间数组；只能在生产者线程调用
+     *
+     * @param data  ：PCM数据
+     * @param begin ：起始字节
+     * @param end   ：结束字节（不包含）
+     * @return ：实际写入的样本数
+     */
+    public int write(byte[] data, int begin, int end) {
+        long write = writeCursor;
+        int length = (end - begin) / 2;
+        int count = (int) Math.min(length, buffer.length - (write - readCursor));
+        for (int i = 0; i < count; i++) {
+            int pos = begin + 2 * i;
+            buffer[(int) ((write + i) & mask)] = (short) ((data[pos] & 0xff) | (data[pos + 1] << 8));
+        }
+        return commitWrite(write, count, length);
+    }
+
+    /**
+     * 读取[position, position + length)范围内的样本，不移动读游标；只能在消费者线程调用
+     * 跨越数组末尾时分两段回调
+     *
+     * @param position ：起始样本序号，不小于读游标
+     * @param length   ：样本数，不超过已写入的范围
+     * @param reader   ：接收样本
+     */
+    public void read(long position, int length, SampleReader reader) {
+        if (position < readCursor || position + length > writeCursor) {
+            throw new IndexOutOfBoundsException("[" + position + ", " + (position + length) + ") 不在 ["
+                    + readCursor + ", " + writeCursor + ") 范围内");
+        }
+        int start = (int) (position & mask);
+        int first = Math.min(length, buffer.length - start);
+        if (first > 0) {
+            reader.read(buffer, start, first);
+        }
+        if (length > first) {
+            reader.read(buffer, 0, length - first);
+        }
+    }
+
+    /**
+     * 从读游标开始读取最多maxLength个样本，并移动读游标；只能在消费者线程调用
+     *
+     * @return ：读取的样本数
+     */
+    public int consume(int maxLength, SampleReader reader) {
+        long read = readCursor;
+        int length = (int) Math.min(maxLength, writeCursor - read);
+        read(read, length, reader);
+        readCursor = read + length;
+        return length;
+    }
+
+    /**
+     * 跳过样本，只能在消费者线程调用
+     */
+    public void skip(int length) {
+        readCursor = Math.min(readCursor + length, writeCursor);
+    }
+
+    /**
+     * 可以读取的样本数
+     */
+    public int available() {
+        return (int) (writeCursor - readCursor);
+    }
+
+    public long getWriteCursor() {
+        return writeCursor;
+    }
+
+    public long getReadCursor() {
+        return readCursor;
+    }
+
+    /**
+     * 缓冲区满时丢弃的样本总数
+     */
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    /**
+     * 清空缓冲区，只能在生产者和消费者都没有访问时调用
+     */
+    public void reset() {
+        writeCursor = 0;
+        readCursor = 0;
+        droppedSamples = 0;
+    }
+
+    private int commitWrite(long write, int count, int length) {
+        if (count < length) {
+            droppedSamples += length - count;
+        }
+        writeCursor = write + count;
+        return count;
+    }
+}
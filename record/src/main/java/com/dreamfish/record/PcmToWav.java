@@ -2,22 +2,31 @@ package com.dreamfish.record;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+/**
+ * pcm文件转换为wav文件
+ * 数据通过FileChannel.transferTo/transferFrom在文件之间直接传输，不经过Java堆中的缓冲区
+ */
 public class PcmToWav {
+    // AudioRecorder的默认录音格式
+    private static final int DEFAULT_SAMPLE_RATE = 16000;
+    private static final int DEFAULT_CHANNELS = 1;
+    private static final int BITS_PER_SAMPLE = 16;
+    // 长度字段是32位无符号整数
+    private static final long MAX_DATA_LENGTH = 0xFFFFFFFFL - (WavStreamWriter.HEADER_SIZE - 8);
+
     /**
-     * 合并多个pcm文件为一个wav文件
+     * 合并多个pcm文件为一个wav文件，16000Hz单声道
      *
      * @param filePathList    pcm文件路径集合
      * @param destinationPath 目标wav文件路径
@@ -25,77 +34,39 @@ public class PcmToWav {
      */
     public static boolean mergePCMFilesToWAVFile(List<String> filePathList,
                                                  String destinationPath) {
-        File[] file = new File[filePathList.size()];
-        byte buffer[] = null;
-
-        int TOTAL_SIZE = 0;
-        int fileNum = filePathList.size();
-
-        for (int i = 0; i < fileNum; i++) {
-            file[i] = new File(filePathList.get(i));
-            TOTAL_SIZE += file[i].length();
-        }
-
-        // 填入参数，比特率等等。这里用的是16位单声道 8000 hz
-        WaveHeader header = new WaveHeader();
-        // 长度字段 = 内容的大小（TOTAL_SIZE) +
-        // 头部字段的大小(不包括前面4字节的标识符RIFF以及fileLength本身的4字节)
-        header.fileLength = TOTAL_SIZE + (44 - 8);
-        header.FmtHdrLeth = 16;
-        header.BitsPerSample = 16;
-        header.Channels = 2;
-        header.FormatTag = 0x0001;
-        header.SamplesPerSec = 8000;
-        header.BlockAlign = (short) (header.Channels * header.BitsPerSample / 8);
-        header.AvgBytesPerSec = header.BlockAlign * header.SamplesPerSec;
-        header.DataHdrLeth = TOTAL_SIZE;
-
-        byte[] h = null;
-        try {
-            h = header.getHeader();
-        } catch (IOException e1) {
-            Log.e("PcmToWav", e1.getMessage());
-            return false;
-        }
-
-        if (h.length != 44) // WAV标准，头部应该是44字节,如果不是44个字节则不进行转换文件
-            return false;
-
-        //先删除目标文件
-        File destfile = new File(destinationPath);
-        if (destfile.exists())
-            destfile.delete();
-
-        //合成所有的pcm文件的数据，写到目标文件
-        try {
-            buffer = new byte[1024 * 4]; // Length of All Files, Total Size
-            InputStream inStream = null;
-            OutputStream ouStream = null;
+        return mergePCMFilesToWAVFile(filePathList, destinationPath, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNELS, false);
+    }
 
-            ouStream = new BufferedOutputStream(new FileOutputStream(
-                    destinationPath));
-            ouStream.write(h, 0, h.length);
-            for (int j = 0; j < fileNum; j++) {
-                inStream = new BufferedInputStream(new FileInputStream(file[j]));
-                int size = inStream.read(buffer);
-                while (size != -1) {
-                    ouStream.write(buffer);
-                    size = inStream.read(buffer);
-                }
-                inStream.close();
-            }
-            ouStream.close();
-        } catch (FileNotFoundException e) {
-            Log.e("PcmToWav", e.getMessage());
-            return false;
-        } catch (IOException ioe) {
-            Log.e("PcmToWav", ioe.getMessage());
-            return false;
+    /**
+     * 合并多个pcm文件为一个wav文件，合并成功后删除pcm文件
+     *
+     * @param filePathList    pcm文件路径集合
+     * @param destinationPath 目标wav文件路径
+     * @param sampleRate      录音的采样率
+     * @param channels        录音的声道数
+     * @param preallocate     先把目标文件设置为最终大小（稀疏文件），再把各个片段写到各自的位置
+     * @return true|false
+     */
+    public static boolean mergePCMFilesToWAVFile(List<String> filePathList, String destinationPath,
+                                                 int sampleRate, int channels, boolean preallocate) {
+        if (merge(filePathList, destinationPath, sampleRate, channels, preallocate)) {
+            clearFiles(filePathList);
+            Log.i("PcmToWav", "mergePCMFilesToWAVFile  success!" + new SimpleDateFormat("yyyy-MM-dd hh:mm").format(new Date()));
+            return true;
         }
-        clearFiles(filePathList);
-        Log.i("PcmToWav", "mergePCMFilesToWAVFile  success!" + new SimpleDateFormat("yyyy-MM-dd hh:mm").format(new Date()));
-        return true;
+        return false;
+    }
 
+    /**
+     * 将一个pcm文件转化为wav文件，16000Hz单声道
+     *
+     * @param pcmPath         pcm文件路径
+     * @param destinationPath 目标文件路径(wav)
+     * @param deletePcmFile   是否删除源文件
+     * @return
+     */
+    public static boolean makePCMFileToWAVFile(String pcmPath, String destinationPath, boolean deletePcmFile) {
+        return makePCMFileToWAVFile(pcmPath, destinationPath, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNELS, deletePcmFile);
     }
 
     /**
@@ -103,40 +74,50 @@ public class PcmToWav {
      *
      * @param pcmPath         pcm文件路径
      * @param destinationPath 目标文件路径(wav)
+     * @param sampleRate      录音的采样率
+     * @param channels        录音的声道数
      * @param deletePcmFile   是否删除源文件
      * @return
      */
-    public static boolean makePCMFileToWAVFile(String pcmPath, String destinationPath, boolean deletePcmFile) {
-        byte buffer[] = null;
-        int TOTAL_SIZE = 0;
+    public static boolean makePCMFileToWAVFile(String pcmPath, String destinationPath, int sampleRate, int channels,
+                                               boolean deletePcmFile) {
         File file = new File(pcmPath);
         if (!file.exists()) {
             return false;
         }
-        TOTAL_SIZE = (int) file.length();
-        // 填入参数，比特率等等。这里用的是16位单声道 8000 hz
-        WaveHeader header = new WaveHeader();
-        // 长度字段 = 内容的大小（TOTAL_SIZE) +
-        // 头部字段的大小(不包括前面4字节的标识符RIFF以及fileLength本身的4字节)
-        header.fileLength = TOTAL_SIZE + (44 - 8);
-        header.FmtHdrLeth = 16;
-        header.BitsPerSample = 16;
-        header.Channels = 2;
-        header.FormatTag = 0x0001;
-        header.SamplesPerSec = 8000;
-        header.BlockAlign = (short) (header.Channels * header.BitsPerSample / 8);
-        header.AvgBytesPerSec = header.BlockAlign * header.SamplesPerSec;
-        header.DataHdrLeth = TOTAL_SIZE;
+        List<String> filePathList = new ArrayList<>();
+        filePathList.add(pcmPath);
+        if (!merge(filePathList, destinationPath, sampleRate, channels, false)) {
+            return false;
+        }
+        if (deletePcmFile) {
+            file.delete();
+        }
+        Log.i("PcmToWav", "makePCMFileToWAVFile  success!" + new SimpleDateFormat("yyyy-MM-dd hh:mm").format(new Date()));
+        return true;
+    }
 
-        byte[] h = null;
+    /**
+     * 写入wav头部，再把各个pcm文件依次传输到头部之后；不删除pcm文件
+     */
+    static boolean merge(List<String> filePathList, String destinationPath,
+                                 int sampleRate, int channels, boolean preallocate) {
+        int fileNum = filePathList.size();
+        File[] file = new File[fileNum];
+        long TOTAL_SIZE = 0;
+        for (int i = 0; i < fileNum; i++) {
+            file[i] = new File(filePathList.get(i));
+            TOTAL_SIZE += file[i].length();
+        }
+
+        byte[] h;
         try {
-            h = header.getHeader();
+            h = new WaveHeader(sampleRate, channels, BITS_PER_SAMPLE, (int) Math.min(TOTAL_SIZE, MAX_DATA_LENGTH)).getHeader();
         } catch (IOException e1) {
             Log.e("PcmToWav", e1.getMessage());
             return false;
         }
-
-        if (h.length != 44) // WAV标准，头部应该是44字节,如果不是44个字节则不进行转换文件
+        if (h.length != WavStreamWriter.HEADER_SIZE) // WAV标准，头部应该是44字节,如果不是44个字节则不进行转换文件
             return false;
 
         //先删除目标文件
@@ -144,36 +125,68 @@ public class PcmToWav {
         if (destfile.exists())
             destfile.delete();
 
-        //合成所有的pcm文件的数据，写到目标文件
+        RandomAccessFile target = null;
         try {
-            buffer = new byte[1024 * 4]; // Length of All Files, Total Size
-            InputStream inStream = null;
-            OutputStream ouStream = null;
-
-            ouStream = new BufferedOutputStream(new FileOutputStream(
-                    destinationPath));
-            ouStream.write(h, 0, h.length);
-            inStream = new BufferedInputStream(new FileInputStream(file));
-            int size = inStream.read(buffer);
-            while (size != -1) {
-                ouStream.write(buffer);
-                size = inStream.read(buffer);
+            target = new RandomAccessFile(destfile, "rw");
+            FileChannel targetChannel = target.getChannel();
+            if (preallocate) {
+                // 只改变文件长度，不写入数据，各片段的位置在合并之前就确定了
+                target.setLength(h.length + TOTAL_SIZE);
+            }
+            ByteBuffer header = ByteBuffer.wrap(h);
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += targetChannel.write(header, position);
+            }
+            for (int j = 0; j < fileNum; j++) {
+                position += transfer(file[j], targetChannel, position);
+            }
+            if (!preallocate) {
+                target.setLength(position);
             }
-            inStream.close();
-            ouStream.close();
-        } catch (FileNotFoundException e) {
-            Log.e("PcmToWav", e.getMessage());
-            return false;
         } catch (IOException ioe) {
-            Log.e("PcmToWav", ioe.getMessage());
+            Log.e("PcmToWav", String.valueOf(ioe.getMessage()));
             return false;
+        } finally {
+            closeQuietly(target);
         }
-        if (deletePcmFile) {
-            file.delete();
-        }
-        Log.i("PcmToWav", "makePCMFileToWAVFile  success!" + new SimpleDateFormat("yyyy-MM-dd hh:mm").format(new Date()));
         return true;
+    }
+
+    /**
+     * 把一个文件的全部内容传输到目标文件的position处
+     *
+     * @return 传输的字节数
+     */
+    private static long transfer(File source, FileChannel target, long position) throws IOException {
+        FileInputStream inStream = new FileInputStream(source);
+        try {
+            FileChannel sourceChannel = inStream.getChannel();
+            long size = sourceChannel.size();
+            long done = 0;
+            while (done < size) {
+                // transferFrom每次可能只传输一部分
+                long count = target.transferFrom(sourceChannel, position + done, size - done);
+                if (count <= 0) {
+                    break;
+                }
+                done += count;
+            }
+            return done;
+        } finally {
+            inStream.close();
+        }
+    }
 
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.e("PcmToWav", String.valueOf(e.getMessage()));
+        }
     }
 
     /**
@@ -0,0 +1,14 @@
+package com.dreamfish.record;
+
+import java.nio.ShortBuffer;
+
+/**
+ * 获取录音的音频流，直接使用录音缓冲区中的16位样本，不复制也不转换
+ */
+public interface RecordShortStreamListener {
+    /**
+     * @param data   ：本次读取的样本，position为0，limit为实际读取的样本数；回调返回后缓冲区回到池中
+     * @param buffer ：数据所在的缓冲区，回调之后还要使用数据时先调用buffer.retain()，用完后buffer.release()
+     */
+    void recordOfShort(ShortBuffer data, AudioBufferPool.Buffer buffer);
+}
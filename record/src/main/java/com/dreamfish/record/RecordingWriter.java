@@ -0,0 +1,305 @@
+package com.dreamfish.record;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 录音文件的异步写入
+ * 录音线程只把池中的缓冲区放进有界队列，不访问文件系统；写入线程打开文件，
+ * 把队列中积累的缓冲区通过FileChannel一次gathering write写入，写完后把缓冲区还给池。
+ * 第一个缓冲区到达后最多等待flushIntervalMillis再写入，期间到达的缓冲区合并为一批。
+ * 队列满时（存储太慢）新的缓冲区被丢弃并计数，录音线程不会因此阻塞而丢失麦克风数据。
+ * 数据直接写成WAV文件，暂停时sync()更新头部，close()后文件完整。
+ * 每次录音（包括中间的暂停/继续）使用一个。
+ */
+public class RecordingWriter {
+    private static final String TAG = "RecordingWriter";
+
+    private final WavStreamWriter output;
+    private final File txtFile;
+    private final long flushIntervalMillis;
+    private final int maxBatchSize;
+    private final ArrayBlockingQueue<AudioBufferPool.Buffer> queue;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile boolean closing = false;
+    private Thread thread;
+    // 已提交的字节数，只在录音线程更新
+    private volatile long submittedBytes = 0;
+    // 需要在头部记录的数据长度：写入线程处理完这么多字节之后更新头部
+    private volatile long syncBytes = 0;
+    // 写入线程已经处理（写入或丢弃）的字节数，以及上一次更新头部时对应的syncBytes
+    private long processedBytes = 0;
+    private long syncedBytes = 0;
+
+    // 统计
+    private volatile long writtenBytes = 0;
+    private volatile long batches = 0;
+    // 录音线程和写入线程都会更新
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private volatile IOException error = null;
+
+    /**
+     * @param output              ：WAV文件，由写入线程打开和关闭
+     * @param txtFile             ：pcm数据的副本，为null时不写
+     * @param queueCapacity       ：队列中最多等待写入的缓冲区个数
+     * @param flushIntervalMillis ：数据最多在内存中停留的时间，毫秒
+     */
+    public RecordingWriter(WavStreamWriter output, File txtFile, int queueCapacity, long flushIntervalMillis) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        this.output = output;
+        this.txtFile = txtFile;
+        this.flushIntervalMillis = Math.max(0, flushIntervalMillis);
+        this.maxBatchSize = queueCapacity;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * 启动写入线程
+     */
+    public void start() {
+        if (thread != null) {
+            throw new IllegalStateException("已经启动");
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } finally {
+                    closed.countDown();
+                }
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    /**
+     * 提交缓冲区中的有效数据，不阻塞；写入线程写完后释放一次引用
+     * 调用之后到写入完成之前不能再修改缓冲区的内容
+     *
+     * @param buffer ：池中的缓冲区，这里会retain()一次
+     * @return ：false表示队列已满或已经关闭，数据被丢弃
+     */
+    public boolean write(AudioBufferPool.Buffer buffer) {
+        int length = buffer.getBytes().remaining();
+        if (!closing) {
+            if (queue.offer(buffer.retain())) {
+                // close()和写入线程最后一次drainTo可能发生在检查closing之后、offer之前，
+                // 这时缓冲区不会再被取走，取回后按丢弃处理
+                if (!closing || !queue.remove(buffer)) {
+                    submittedBytes += length;
+                    return true;
+                }
+            }
+            buffer.release();
+        }
+        overruns.incrementAndGet();
+        droppedBytes.addAndGet(length);
+        return false;
+    }
+
+    /**
+     * 已提交的数据写完后更新WAV头部，暂停录音时调用；不阻塞
+     */
+    public void sync() {
+        syncBytes = submittedBytes;
+    }
+
+    /**
+     * 不再提交数据，写入线程写完队列中剩余的数据后关闭文件；不阻塞
+     */
+    public void close() {
+        closing = true;
+    }
+
+    /**
+     * 等待写入线程关闭文件
+     *
+     * @return ：false表示超时
+     */
+    public boolean awaitClosed(long timeoutMillis) throws InterruptedException {
+        return closed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public WavStreamWriter getOutput() {
+        return output;
+    }
+
+    /**
+     * 已写入WAV文件的数据字节数
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * gathering write的次数
+     */
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * 队列满（或写入出错）而丢弃的缓冲区个数
+     */
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * 写入线程遇到的第一个错误，没有错误时为null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    private void writeLoop() {
+        FileOutputStream txtStream = null;
+        FileChannel txtChannel = null;
+        try {
+            output.open();
+            if (txtFile != null) {
+                txtStream = new FileOutputStream(txtFile);
+                txtChannel = txtStream.getChannel();
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+
+        List<AudioBufferPool.Buffer> batch = new ArrayList<>(maxBatchSize);
+        ByteBuffer[] sources = new ByteBuffer[maxBatchSize];
+        try {
+            while (true) {
+                AudioBufferPool.Buffer first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closing) {
+                        break;
+                    }
+                    syncHeader();
+                    continue;
+                }
+                batch.add(first);
+                // 等待到刷新时间，期间到达的缓冲区合并到同一批
+                long deadline = System.currentTimeMillis() + flushIntervalMillis;
+                while (batch.size() < maxBatchSize && !closing) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    AudioBufferPool.Buffer next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                writeBatch(batch, sources, txtChannel);
+                syncHeader();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // close()之前提交的数据都已经在队列中
+        while (queue.drainTo(batch, maxBatchSize) > 0) {
+            writeBatch(batch, sources, txtChannel);
+        }
+        try {
+            output.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+        closeQuietly(txtStream);
+    }
+
+    private void writeBatch(List<AudioBufferPool.Buffer> batch, ByteBuffer[] sources, FileChannel txtChannel) {
+        int count = batch.size();
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            sources[i] = batch.get(i).getBytes();
+            length += sources[i].remaining();
+        }
+        try {
+            if (error != null) {
+                throw error;
+            }
+            output.write(sources, 0, count);
+            writtenBytes += length;
+            batches++;
+            if (txtChannel != null) {
+                for (int i = 0; i < count; i++) {
+                    sources[i].rewind();
+                }
+                writeFully(txtChannel, sources, count);
+            }
+        } catch (IOException e) {
+            if (error == null) {
+                fail(e);
+            }
+            overruns.addAndGet(count);
+            droppedBytes.addAndGet(length);
+        }
+        processedBytes += length;
+        for (int i = 0; i < count; i++) {
+            sources[i] = null;
+            batch.get(i).release();
+        }
+        batch.clear();
+    }
+
+    /**
+     * sync()之前提交的数据都处理完之后更新WAV头部
+     */
+    private void syncHeader() {
+        long target = syncBytes;
+        if (error != null || target <= syncedBytes || processedBytes < target) {
+            return;
+        }
+        syncedBytes = target;
+        try {
+            output.updateHeader();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer[] sources, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            channel.write(sources, offset, count - offset);
+            while (offset < count && !sources[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        error = e;
+        Log.e(TAG, String.valueOf(e.getMessage()));
+    }
+
+    private static void closeQuietly(FileOutputStream stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.e(TAG, String.valueOf(e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.dreamfish.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * 边录音边写WAV文件
+ * 打开时先写入44字节的头部占位，之后样本直接追加在文件末尾；
+ * updateHeader()回到头部只改写RIFF和data两个长度字段，暂停和停止时调用，
+ * 因此停止录音只需要改写8个字节，不需要再把数据复制一遍。
+ * 只能在一个线程中使用。
+ */
+public class WavStreamWriter implements Closeable {
+    public static final int HEADER_SIZE = 44;
+    private static final int RIFF_SIZE_OFFSET = 4;
+    private static final int DATA_SIZE_OFFSET = 40;
+    // 长度字段是32位无符号整数
+    private static final long MAX_DATA_LENGTH = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+
+    private final File file;
+    private final int sampleRate;
+    private final int channels;
+    private final int bitsPerSample;
+    private final ByteBuffer sizeField = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long dataLength = 0;
+    // 头部中已经写入的数据长度
+    private long headerDataLength = 0;
+
+    /**
+     * @param file          ：目标文件，已存在时被覆盖
+     * @param sampleRate    ：采样率
+     * @param channels      ：声道数
+     * @param bitsPerSample ：每个样本的位数
+     */
+    public WavStreamWriter(File file, int sampleRate, int channels, int bitsPerSample) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+    }
+
+    /**
+     * 创建文件并写入头部占位，数据长度为0
+     */
+    public void open() throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("已经打开");
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            channel = randomAccessFile.getChannel();
+            writeFully(ByteBuffer.wrap(new WaveHeader(sampleRate, channels, bitsPerSample, 0).getHeader()));
+        } catch (IOException e) {
+            randomAccessFile.close();
+            channel = null;
+            throw e;
+        }
+        dataLength = 0;
+        headerDataLength = 0;
+    }
+
+    /**
+     * 追加data中position到limit之间的字节
+     */
+    public void write(ByteBuffer data) throws IOException {
+        dataLength += writeFully(data);
+    }
+
+    /**
+     * 追加多个缓冲区，一次gathering write
+     */
+    public void write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            dataLength += channel.write(sources, offset, end - offset);
+            while (offset < end && !sources[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * 把当前的数据长度写入头部，不移动写入位置；长度没有变化时不写
+     */
+    public void updateHeader() throws IOException {
+        if (dataLength == headerDataLength) {
+            return;
+        }
+        long length = Math.min(dataLength, MAX_DATA_LENGTH);
+        writeSize(RIFF_SIZE_OFFSET, length + (HEADER_SIZE - 8));
+        writeSize(DATA_SIZE_OFFSET, length);
+        headerDataLength = dataLength;
+    }
+
+    /**
+     * 更新头部并关闭文件
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            updateHeader();
+        } finally {
+            channel = null;
+            randomAccessFile.close();
+        }
+    }
+
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 已写入的数据字节数，不包括头部
+     */
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    private void writeSize(long position, long value) throws IOException {
+        sizeField.clear();
+        sizeField.putInt(0, (int) value);
+        while (sizeField.hasRemaining()) {
+            position += channel.write(sizeField, position);
+        }
+    }
+
+    private int writeFully(ByteBuffer data) throws IOException {
+        int count = 0;
+        while (data.hasRemaining()) {
+            count += channel.write(data);
+        }
+        return count;
+    }
+}
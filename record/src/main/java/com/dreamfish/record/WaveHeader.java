@@ -18,6 +18,30 @@ public class WaveHeader {
     public char DataHdrID[] = {'d','a','t','a'};
     public int DataHdrLeth;
 
+    public WaveHeader() {
+    }
+
+    /**
+     * PCM格式的头部
+     *
+     * @param sampleRate    采样率
+     * @param channels      声道数
+     * @param bitsPerSample 每个样本的位数
+     * @param dataLength    数据的字节数
+     */
+    public WaveHeader(int sampleRate, int channels, int bitsPerSample, int dataLength) {
+        // 长度字段 = 内容的大小 + 头部字段的大小(不包括前面4字节的标识符RIFF以及fileLength本身的4字节)
+        fileLength = dataLength + (44 - 8);
+        FmtHdrLeth = 16;
+        BitsPerSample = (short) bitsPerSample;
+        Channels = (short) channels;
+        FormatTag = 0x0001;
+        SamplesPerSec = sampleRate;
+        BlockAlign = (short) (Channels * BitsPerSample / 8);
+        AvgBytesPerSec = BlockAlign * SamplesPerSec;
+        DataHdrLeth = dataLength;
+    }
+
     public byte[] getHeader() throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         WriteChar(bos, fileID);
@@ -0,0 +1,29 @@
+package com.dreamfish.record;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioBufferPoolTest {
+    @Test
+    public void retain_afterRecycle_throwsWithoutChangingCount() {
+        AudioBufferPool pool = new AudioBufferPool(16, 2);
+        AudioBufferPool.Buffer buffer = pool.acquire();
+        buffer.retain().release();
+        buffer.release();
+        try {
+            buffer.retain();
+            fail("retain() on a recycled buffer should throw");
+        } catch (IllegalStateException expected) {
+        }
+        // 计数仍为0：再释放一次是重复释放，缓冲区不会第二次回到池中
+        try {
+            buffer.release();
+            fail("release() on a recycled buffer should throw");
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(pool.acquire() == buffer);
+        assertTrue(pool.acquire() != buffer);
+        assertEquals(2, pool.getAllocatedCount());
+    }
+}
@@ -0,0 +1,89 @@
+package com.dreamfish.record;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+public class AudioRingBufferTest {
+    @Test
+    public void consume_wrapsAroundWithoutLosingOrder() {
+        AudioRingBuffer ring = new AudioRingBuffer(8);
+        final short[] out = new short[20];
+        final int[] count = {0};
+        AudioRingBuffer.SampleReader reader = new AudioRingBuffer.SampleReader() {
+            @Override
+            public void read(short[] data, int offset, int length) {
+                System.arraycopy(data, offset, out, count[0], length);
+                count[0] += length;
+            }
+        };
+        short next = 0;
+        for (int round = 0; round < 4; round++) {
+            short[] chunk = new short[5];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = next++;
+            }
+            assertEquals(5, ring.write(chunk, 0, chunk.length));
+            assertEquals(5, ring.consume(5, reader));
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, out[i]);
+        }
+        assertEquals(20, ring.getReadCursor());
+        assertEquals(20, ring.getWriteCursor());
+    }
+
+    @Test
+    public void write_dropsSamplesWhenFull() {
+        AudioRingBuffer ring = new AudioRingBuffer(4);
+        byte[] pcm = {1, 0, 2, 0, 3, 0, 4, 0, 5, 0, (byte) 0xff, (byte) 0xff};
+        assertEquals(4, ring.write(pcm, 0, pcm.length));
+        assertEquals(2, ring.getDroppedSamples());
+        assertEquals(4, ring.available());
+
+        final short[] window = new short[2];
+        ring.read(1, 2, new AudioRingBuffer.SampleReader() {
+            @Override
+            public void read(short[] data, int offset, int length) {
+                System.arraycopy(data, offset, window, 0, length);
+            }
+        });
+        assertArrayEquals(new short[]{2, 3}, window);
+        assertEquals(0, ring.getReadCursor());
+    }
+
+    @Test
+    public void write_copiesShortBufferAcrossWrap() {
+        AudioRingBuffer ring = new AudioRingBuffer(4);
+        ring.write(new short[]{9, 9, 9}, 0, 3);
+        ring.skip(3);
+
+        AudioBufferPool pool = new AudioBufferPool(12, 1);
+        AudioBufferPool.Buffer buffer = pool.acquire();
+        buffer.getSamples().put(new short[]{1, 2, 3, 4, 5, 6});
+        buffer.setLength(10);
+        ShortBuffer samples = buffer.getSamples();
+        assertEquals(4, ring.write(samples));
+        assertEquals(1, samples.remaining());
+        assertEquals(1, ring.getDroppedSamples());
+
+        final short[] out = new short[4];
+        ring.read(3, 4, new AudioRingBuffer.SampleReader() {
+            int count = 0;
+
+            @Override
+            public void read(short[] data, int offset, int length) {
+                System.arraycopy(data, offset, out, count, length);
+                count += length;
+            }
+        });
+        assertArrayEquals(new short[]{1, 2, 3, 4}, out);
+
+        buffer.release();
+        assertTrue(buffer == pool.acquire());
+        assertEquals(6, buffer.getSampleCount());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+}
@@ -0,0 +1,97 @@
+package com.dreamfish.record;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PcmToWavTest {
+    @Test
+    public void merge_writesHeaderAndConcatenatesPayload() throws IOException {
+        checkMerge(false);
+    }
+
+    @Test
+    public void merge_preallocated_writesSamePayload() throws IOException {
+        checkMerge(true);
+    }
+
+    private static void checkMerge(boolean preallocate) throws IOException {
+        byte[] first = pattern(1000, 1);
+        byte[] second = pattern(3001, 7);
+        List<String> pcmFiles = new ArrayList<>();
+        pcmFiles.add(write(first).getPath());
+        pcmFiles.add(write(second).getPath());
+        File wav = File.createTempFile("merged", ".wav");
+        wav.deleteOnExit();
+
+        assertTrue(PcmToWav.merge(pcmFiles, wav.getPath(), 16000, 2, preallocate));
+
+        byte[] data = read(wav);
+        int payload = first.length + second.length;
+        assertEquals(WavStreamWriter.HEADER_SIZE + payload, data.length);
+        ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", new String(data, 0, 4, "US-ASCII"));
+        assertEquals(36 + payload, header.getInt(4));
+        assertEquals(2, header.getShort(22));
+        assertEquals(16000, header.getInt(24));
+        assertEquals(16000 * 2 * 2, header.getInt(28));
+        assertEquals(16, header.getShort(34));
+        assertEquals("data", new String(data, 36, 4, "US-ASCII"));
+        assertEquals(payload, header.getInt(40));
+
+        int offset = WavStreamWriter.HEADER_SIZE;
+        assertArrayEquals(first, Arrays.copyOfRange(data, offset, offset + first.length));
+        offset += first.length;
+        assertArrayEquals(second, Arrays.copyOfRange(data, offset, offset + second.length));
+        // merge()不删除pcm文件
+        assertTrue(new File(pcmFiles.get(0)).isFile());
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("segment", ".pcm");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int done = 0;
+            while (done < bytes.length) {
+                int count = in.read(bytes, done, bytes.length - done);
+                if (count < 0) {
+                    break;
+                }
+                done += count;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}